@@ -0,0 +1,154 @@
+/*
+ * AppendableContent.java is file content that grows at its end without copying the bytes already there.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * every AppendableContent of a file is a prefix of one shared Buffer, like a slice of an array.
+ * appending to the longest content writes behind its end, where no shorter content looks,
+ * and returns a longer content over the same chunks, so an append costs the bytes appended
+ * and the chunk array only grows by doubling. appending to a shorter content (an older
+ * state kept by a snapshot, or a copied file whose original was appended to) copies it into
+ * a Buffer of its own first.
+ * the first chunk starts small and doubles up to CHUNK_SIZE, the others are CHUNK_SIZE, so the
+ * chunk holding any position is found by division. chunks are taken off the heap once the
+ * file reaches the off-heap threshold of ContentWriter
+ */
+final class AppendableContent implements FileContent {
+    private static final int CHUNK_SIZE = ContentWriter.CHUNK_SIZE;
+
+    // the chunks shared by the contents of one file, only ever written behind size
+    private static final class Buffer {
+        private ByteBuffer[] chunks = new ByteBuffer[4];
+        private long size;
+
+        synchronized AppendableContent append(AppendableContent base, FileContent source) throws IOException {
+            if (base.size != size) {
+                // something was already appended to a longer content of this Buffer
+                Buffer own = new Buffer();
+                return own.append(own.append(own.empty(), base), source);
+            }
+            byte[] transfer = new byte[(int) Math.min(CHUNK_SIZE, Math.max(source.size(), 1))];
+            for (long position = 0; position < source.size(); ) {
+                int read;
+                try {
+                    read = source.read(position, transfer, 0, transfer.length);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                if (read <= 0) {
+                    // a mounted file that got shorter on the host, the bytes written so far are
+                    // behind the end of every content of this Buffer and never seen
+                    throw new IOException("Content shrank while it was copied: " + position + " of "
+                            + source.size() + " bytes");
+                }
+                write(transfer, read);
+                position += read;
+            }
+            return content();
+        }
+
+        private void write(byte[] bytes, int length) {
+            int offset = 0;
+            while (length > 0) {
+                ByteBuffer chunk = chunkFor(length);
+                int position = (int) (size % CHUNK_SIZE);
+                int copied = Math.min(length, chunk.capacity() - position);
+                chunk.put(position, bytes, offset, copied);
+                size += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        // the chunk the next bytes go in, with room for at least one of them
+        private ByteBuffer chunkFor(int length) {
+            int index = (int) (size / CHUNK_SIZE);
+            int position = (int) (size % CHUNK_SIZE);
+            if (size == 0 && chunks[0] == null) {
+                chunks[0] = ByteBuffer.allocate(Math.min(CHUNK_SIZE, Math.max(length, 16)));
+                return chunks[0];
+            }
+            if (index == 0 && position == chunks[0].capacity()) {
+                // a grown first chunk goes in a new array, the shorter contents keep the old one
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(CHUNK_SIZE, Math.max(position * 2, position + length)));
+                grown.put(0, chunks[0], 0, position);
+                chunks = Arrays.copyOf(chunks, chunks.length);
+                chunks[0] = grown;
+                return grown;
+            }
+            if (position == 0 && (index >= chunks.length || chunks[index] == null)) {
+                if (index == chunks.length) {
+                    // the shorter contents keep the old array, whose used part never changes
+                    chunks = Arrays.copyOf(chunks, chunks.length * 2);
+                }
+                chunks[index] = size >= ContentWriter.getOffHeapThreshold()
+                        ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+            }
+            return chunks[index];
+        }
+
+        private AppendableContent empty() {
+            return new AppendableContent(this, chunks, 0);
+        }
+
+        private AppendableContent content() {
+            return new AppendableContent(this, chunks, size);
+        }
+    }
+
+    private final Buffer buffer;
+    private final ByteBuffer[] chunks; // the used part holds the bytes of this content
+    private final long size;
+
+    private AppendableContent(Buffer buffer, ByteBuffer[] chunks, long size) {
+        this.buffer = buffer;
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /*
+     * content with addition added at its end. the first append to a file copies its
+     * content once, every later one only writes the new bytes. fails if content or addition
+     * cannot be read completely, a mounted file can change on the host
+     */
+    static FileContent append(FileContent content, FileContent addition) throws IOException {
+        AppendableContent base;
+        if (content instanceof AppendableContent) {
+            base = (AppendableContent) content;
+        } else {
+            Buffer buffer = new Buffer();
+            base = buffer.append(buffer.empty(), content.reader());
+        }
+        return base.buffer.append(base, addition);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, 0, size);
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+        int copied = 0;
+        while (copied < length && position < size) {
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)];
+            int from = (int) (position % CHUNK_SIZE);
+            int count = (int) Math.min(Math.min(length - copied, chunk.capacity() - from), size - position);
+            chunk.get(from, buffer, offset + copied, count); // absolute, so readers never clash with appends
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * BlobStore.java keeps every distinct file content once, shared by all files holding the same bytes.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * contents are keyed by the SHA-256 of their bytes. a file created with bytes that are
+ * already stored gets the stored Blob instead, and the new copy is dropped, so memory
+ * grows with the distinct contents and not with the number of files.
+ * every Blob counts the files pointing to it. removing a file releases its Blob and the
+ * last release takes the Blob out of the store.
+ * a Blob whose count reached 0 is marked dead (-1) before it is removed, so a file being
+ * created at the same moment can never pick it up again and makes a new one instead
+ */
+final class BlobStore {
+    private final ConcurrentHashMap<ByteBuffer, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong uniqueBytes = new AtomicLong();
+
+    // a stored content, it is a FileContent itself so a User can hold it directly
+    static final class Blob implements FileContent {
+        private final BlobStore store;
+        private final ByteBuffer hash;
+        private final FileContent content;
+        private final AtomicInteger references = new AtomicInteger();
+
+        private Blob(BlobStore store, ByteBuffer hash, FileContent content) {
+            this.store = store;
+            this.hash = hash;
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.size();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            content.writeTo(out);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) {
+            return content.read(position, buffer, offset, length);
+        }
+
+        @Override
+        public FileContent reader() {
+            return content.reader();
+        }
+
+        @Override
+        public void writeTo(OutputStream out, long offset, long length) throws IOException {
+            content.writeTo(out, offset, length);
+        }
+
+        int getReferences() {
+            return references.get();
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count < 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+    }
+
+    /*
+     * the stored Blob with the same bytes as content, stored now if there is none.
+     * the caller holds one reference to it, given back with release
+     */
+    Blob intern(FileContent content) {
+        if (content instanceof Blob && ((Blob) content).store == this) {
+            Blob blob = (Blob) content;
+            if (blob.retain()) {
+                return blob;
+            }
+            content = blob.content;
+        }
+        FileContent bytes = content;
+        ByteBuffer hash = ByteBuffer.wrap(hashOf(bytes));
+        while (true) {
+            Blob blob = blobs.computeIfAbsent(hash, key -> {
+                uniqueBytes.addAndGet(bytes.size());
+                return new Blob(this, key, bytes);
+            });
+            if (blob.retain()) {
+                return blob;
+            }
+            // it died between the lookup and retain, so the next round stores a new one
+            remove(blob);
+        }
+    }
+
+    // giving back one reference, content that is not a Blob of this store is ignored
+    void release(FileContent content) {
+        if (!(content instanceof Blob) || ((Blob) content).store != this) {
+            return;
+        }
+        Blob blob = (Blob) content;
+        if (blob.references.decrementAndGet() == 0 && blob.references.compareAndSet(0, -1)) {
+            remove(blob);
+        }
+    }
+
+    private void remove(Blob blob) {
+        if (blobs.remove(blob.hash, blob)) {
+            uniqueBytes.addAndGet(-blob.size());
+        }
+    }
+
+    // number of distinct contents stored
+    int getBlobCount() {
+        return blobs.size();
+    }
+
+    // bytes of all distinct contents, what the files really take up
+    long getUniqueBytes() {
+        return uniqueBytes.get();
+    }
+
+    private static byte[] hashOf(FileContent content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+        try {
+            content.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    digest.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    digest.update(b, off, len);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // contents in memory do not fail to write
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * ChannelWriter.java buffers small writes on their way to a FileChannel.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/*
+ * ChannelWriter collects ints, longs, varints and byte arrays in a direct buffer and
+ * writes the buffer to the channel when it is full or flushed. it is an OutputStream
+ * as well, so a FileContent can write itself into it.
+ * if a checksum is set, every byte written is also added to it.
+ */
+final class ChannelWriter extends OutputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private Checksum checksum;
+
+    ChannelWriter(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // adding every following byte to checksum, or stop doing so with null
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    // bytes written but not yet handed to the channel
+    int buffered() {
+        return buffer.position();
+    }
+
+    void writeByte(byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+        if (checksum != null) {
+            checksum.update(value);
+        }
+    }
+
+    void writeInt(int value) throws IOException {
+        ensure(4);
+        int start = buffer.position();
+        buffer.putInt(value);
+        updateChecksum(start);
+    }
+
+    void writeLong(long value) throws IOException {
+        ensure(8);
+        int start = buffer.position();
+        buffer.putLong(value);
+        updateChecksum(start);
+    }
+
+    // 7 bits per byte, the high bit telling whether another byte follows
+    void writeVarLong(long value) throws IOException {
+        ensure(10);
+        int start = buffer.position();
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        updateChecksum(start);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        writeByte((byte) value);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (checksum != null) {
+            checksum.update(bytes, offset, length);
+        }
+        while (length > 0) {
+            ensure(1);
+            int copied = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, copied);
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    // handing everything buffered to the channel, which does not force it to disk
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void updateChecksum(int start) {
+        if (checksum == null) {
+            return;
+        }
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        written.position(start);
+        checksum.update(written);
+    }
+}
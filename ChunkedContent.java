@@ -0,0 +1,57 @@
+/*
+ * ChunkedContent.java keeps file bytes on the heap as a list of fixed size byte[] chunks.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * ChunkedContent stores the bytes in chunks of ContentWriter.CHUNK_SIZE, so a large file
+ * never needs one huge array and writing it out never copies the whole file at once.
+ * every chunk but the last one is full (see ContentWriter), so the chunk holding a
+ * position is found by dividing it by the chunk size.
+ */
+final class ChunkedContent implements FileContent {
+    private final byte[][] chunks;
+    private final long size;
+
+    ChunkedContent(byte[][] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        long remaining = size;
+        for (byte[] chunk : chunks) {
+            int length = (int) Math.min(chunk.length, remaining);
+            out.write(chunk, 0, length);
+            remaining -= length;
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+        if (position < 0) {
+            return 0;
+        }
+        int copied = 0;
+        for (int index = (int) (position / ContentWriter.CHUNK_SIZE); index < chunks.length && copied < length; index++) {
+            long chunkStart = (long) index * ContentWriter.CHUNK_SIZE;
+            long chunkEnd = Math.min(chunkStart + chunks[index].length, size);
+            if (position >= chunkEnd) {
+                break;
+            }
+            int count = (int) Math.min(length - copied, chunkEnd - position);
+            System.arraycopy(chunks[index], (int) (position - chunkStart), buffer, offset + copied, count);
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+}
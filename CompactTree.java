@@ -0,0 +1,438 @@
+/*
+ * CompactTree.java keeps a read-only tree in a few primitive arrays instead of one object per node.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * a User costs well over a hundred bytes with its String, TreeMap entry and counters, which
+ * is most of the heap on a tree with tens of millions of nodes. a CompactTree numbers the
+ * nodes in depth first order, the order of a snapshot file, and keeps one slot per node in
+ * parallel arrays: the parent, where the name starts in one shared array of UTF-8 bytes,
+ * the total size and the number of nodes in the subtree. that is about 30 bytes a node plus
+ * the name.
+ * in depth first order the subtree of node i is the range i .. i + count[i] - 1, its first
+ * child is i + 1 and the next sibling of a child c is c + count[c]. so du is one lookup,
+ * recounting or finding is one pass over a range of the arrays, and "is a below b" is a
+ * comparison of two numbers. the children of a directory are in the order of their names,
+ * so a name in a wide directory is found by halving an array of its children, which is made
+ * the first time a name is looked up in it.
+ * the tree never changes, so it needs no locks, versions or lazy copies, everything the live
+ * tree of User needs them for. a node is handed out as a small Node, a TreeNode, so resolving
+ * paths, ls, cat and du work on it like on a User. contents are kept as they were given when
+ * the tree was built from Users, and mapped from the snapshot file when it was loaded from one
+ */
+final class CompactTree {
+    private static final int SCANNED_CHILDREN = 16; // directories with more children are searched by halving
+
+    private final int size;
+    private final int[] parent; // -1 for the root
+    private final int[] nameStart; // the name of node i is names[nameStart[i] .. nameStart[i + 1])
+    private final byte[] names;
+    private final long[] totalSize; // for a file its own size
+    private final int[] totalCount; // nodes in the subtree, itself included
+    private final BitSet directories;
+    private final FileContent[] contents; // null when the contents are in a snapshot file
+    private final Path source; // the snapshot file, or null
+    private final long[] contentStart; // where each file starts in source
+    private final ConcurrentHashMap<Integer, int[]> wideChildren = new ConcurrentHashMap<>(); // directory -> its children
+
+    private CompactTree(Builder builder) {
+        this.size = builder.size;
+        this.parent = Arrays.copyOf(builder.parent, size);
+        this.nameStart = Arrays.copyOf(builder.nameStart, size + 1);
+        this.names = Arrays.copyOf(builder.names, nameStart[size]);
+        this.totalSize = Arrays.copyOf(builder.totalSize, size);
+        this.totalCount = new int[size];
+        this.directories = builder.directories;
+        this.contents = builder.contents == null ? null : Arrays.copyOf(builder.contents, size);
+        this.source = builder.source;
+        this.contentStart = builder.contentStart == null ? null : Arrays.copyOf(builder.contentStart, size);
+        // every node comes after its parent, so going backwards adds up the subtrees bottom up
+        Arrays.fill(totalCount, 1);
+        for (int i = size - 1; i > 0; i--) {
+            totalCount[parent[i]] += totalCount[i];
+            totalSize[parent[i]] += totalSize[i];
+        }
+    }
+
+    /*
+     * collects the nodes in depth first order, each one after its parent and after the whole
+     * subtree of its older sibling. names go into one growing byte array
+     */
+    static final class Builder {
+        private final Path source;
+        private int size;
+        private int[] parent = new int[1024];
+        private int[] nameStart = new int[1025];
+        private byte[] names = new byte[16 * 1024];
+        private long[] totalSize = new long[1024];
+        private final BitSet directories = new BitSet();
+        private FileContent[] contents;
+        private long[] contentStart;
+
+        // source is the snapshot file the contents are in, null if they are given as FileContents
+        Builder(Path source) {
+            this.source = source;
+            if (source == null) {
+                contents = new FileContent[1024];
+            } else {
+                contentStart = new long[1024];
+            }
+        }
+
+        int addDirectory(int parentNode, byte[] name, int offset, int length) {
+            int node = add(parentNode, name, offset, length, 0);
+            directories.set(node);
+            return node;
+        }
+
+        int addFile(int parentNode, byte[] name, int offset, int length, FileContent content) {
+            int node = add(parentNode, name, offset, length, content.size());
+            contents[node] = content;
+            return node;
+        }
+
+        int addFile(int parentNode, byte[] name, int offset, int length, long fileSize, long start) {
+            int node = add(parentNode, name, offset, length, fileSize);
+            contentStart[node] = start;
+            return node;
+        }
+
+        CompactTree build() {
+            return new CompactTree(this);
+        }
+
+        private int add(int parentNode, byte[] name, int offset, int length, long fileSize) {
+            if (size == Integer.MAX_VALUE - 8 || (long) nameStart[size] + length > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many files and directories for a compact tree");
+            }
+            if (size == parent.length) {
+                int grown = (int) Math.min(Integer.MAX_VALUE - 8, size * 2L);
+                parent = Arrays.copyOf(parent, grown);
+                nameStart = Arrays.copyOf(nameStart, grown + 1);
+                totalSize = Arrays.copyOf(totalSize, grown);
+                if (contents != null) {
+                    contents = Arrays.copyOf(contents, grown);
+                } else {
+                    contentStart = Arrays.copyOf(contentStart, grown);
+                }
+            }
+            int start = nameStart[size];
+            if (start + length > names.length) {
+                names = Arrays.copyOf(names, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(names.length * 2L, (long) start + length)));
+            }
+            System.arraycopy(name, offset, names, start, length);
+            parent[size] = parentNode;
+            nameStart[size + 1] = start + length;
+            totalSize[size] = fileSize;
+            return size++;
+        }
+    }
+
+    // a copy of the tree below root, which is read like save does, with the tree lock held
+    static CompactTree of(User root) {
+        Builder builder = new Builder(null);
+        // the Users still to add with the node of their parent, pushed in reverse so they come out in order
+        Deque<User> users = new ArrayDeque<>();
+        Deque<Integer> parents = new ArrayDeque<>();
+        users.push(root);
+        parents.push(-1);
+        while (!users.isEmpty()) {
+            User user = users.pop();
+            int parentNode = parents.pop();
+            byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+            if (user.isFile()) {
+                builder.addFile(parentNode, name, 0, name.length, user.getContent());
+                continue;
+            }
+            int node = builder.addDirectory(parentNode, name, 0, name.length);
+            List<User> children = user.getSubDirectories();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                users.push(children.get(i));
+                parents.push(node);
+            }
+        }
+        return builder.build();
+    }
+
+    int size() {
+        return size;
+    }
+
+    // the snapshot file the contents are read from, or null
+    Path getSource() {
+        return source;
+    }
+
+    TreeNode getRoot() {
+        return new Node(this, 0);
+    }
+
+    /*
+     * adding up the file sizes below directory again instead of using the kept total,
+     * one pass over its range of the arrays
+     */
+    long recount(TreeNode directory) {
+        int node = indexOf(directory);
+        long total = 0;
+        for (int i = node, end = node + totalCount[node]; i < end; i++) {
+            if (!directories.get(i)) {
+                total += totalSize[i];
+            }
+        }
+        return total;
+    }
+
+    /*
+     * calling action with the full path of every node below directory whose name matches
+     * pattern, in the order Finder walks them. names are compared as UTF-8 bytes and only
+     * turned into Strings for a glob whose prefix matched, or a match being printed.
+     * the CharSequence is only valid during the call, like with Finder
+     */
+    void find(TreeNode directory, NamePattern pattern, Consumer<CharSequence> action) {
+        int top = indexOf(directory);
+        byte[] wanted = pattern.text().getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = pattern.prefix().getBytes(StandardCharsets.UTF_8);
+        byte[] path = Finder.prefixOf(directory).getBytes(StandardCharsets.UTF_8);
+        // the directories on the way down to the current node, with the length of their path
+        int[] stack = new int[16];
+        int[] lengths = new int[16];
+        int depth = 1;
+        stack[0] = top;
+        lengths[0] = path.length;
+        for (int i = top + 1, end = top + totalCount[top]; i < end; i++) {
+            while (stack[depth - 1] != parent[i]) {
+                depth--;
+            }
+            int start = nameStart[i];
+            int length = nameStart[i + 1] - start;
+            int pathLength = lengths[depth - 1] + 1 + length;
+            if (pathLength > path.length) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, pathLength));
+            }
+            path[lengths[depth - 1]] = '/';
+            System.arraycopy(names, start, path, lengths[depth - 1] + 1, length);
+            if (directories.get(i) && totalCount[i] > 1) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                    lengths = Arrays.copyOf(lengths, depth * 2);
+                }
+                stack[depth] = i;
+                lengths[depth++] = pathLength;
+            }
+            boolean match;
+            if (pattern.isExact()) {
+                match = Arrays.equals(names, start, start + length, wanted, 0, wanted.length);
+            } else {
+                match = length >= prefix.length
+                        && Arrays.equals(names, start, start + prefix.length, prefix, 0, prefix.length)
+                        && pattern.matches(new String(names, start, length, StandardCharsets.UTF_8));
+            }
+            if (match) {
+                action.accept(new String(path, 0, pathLength, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // the number of a node of this tree
+    private int indexOf(TreeNode node) {
+        if (!(node instanceof Node) || ((Node) node).tree != this) {
+            throw new IllegalArgumentException("Not a node of this tree: " + node.getName());
+        }
+        return ((Node) node).index;
+    }
+
+    private FileContent contentOf(int node) {
+        if (directories.get(node)) {
+            return null;
+        }
+        if (contents != null) {
+            return contents[node];
+        }
+        return totalSize[node] == 0 ? FileContent.EMPTY : new MappedContent(source, contentStart[node], totalSize[node]);
+    }
+
+    // the child of node called name, or -1. the children are compared as bytes, nothing is decoded
+    private int childOf(int node, String name) {
+        if (!directories.get(node)) {
+            return -1;
+        }
+        byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+        int[] children = wideChildren.get(node);
+        if (children == null) {
+            int scanned = 0;
+            for (int child = node + 1, end = node + totalCount[node]; child < end; child += totalCount[child]) {
+                if (++scanned > SCANNED_CHILDREN) {
+                    children = wideChildren.computeIfAbsent(node, this::childrenOf);
+                    break;
+                }
+                if (Arrays.equals(names, nameStart[child], nameStart[child + 1], wanted, 0, wanted.length)) {
+                    return child;
+                }
+            }
+            if (children == null) {
+                return -1;
+            }
+        }
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compareName(children[middle], wanted);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return children[middle];
+            }
+        }
+        return -1;
+    }
+
+    private int[] childrenOf(int node) {
+        int count = 0;
+        for (int child = node + 1, end = node + totalCount[node]; child < end; child += totalCount[child]) {
+            count++;
+        }
+        int[] children = new int[count];
+        for (int child = node + 1, i = 0; i < count; child += totalCount[child]) {
+            children[i++] = child;
+        }
+        return children;
+    }
+
+    /*
+     * comparing the name of node with wanted in the order of String.compareTo, which is the
+     * order of the children. UTF-8 bytes sort by code point, which only differs from it where a
+     * character above U+FFFF (two UTF-16 chars, the first from U+D800) meets one from U+E000 on,
+     * so only the first characters that differ are decoded
+     */
+    private int compareName(int node, byte[] wanted) {
+        int start = nameStart[node];
+        int length = nameStart[node + 1] - start;
+        int mismatch = Arrays.mismatch(names, start, start + length, wanted, 0, wanted.length);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch == length || mismatch == wanted.length) {
+            return length - wanted.length; // one is the start of the other
+        }
+        // both are the same up to mismatch, so the characters differing there start at the same byte
+        int character = mismatch;
+        while (character > 0 && (wanted[character] & 0xC0) == 0x80) {
+            character--;
+        }
+        return Long.compare(utf16Order(names, start + character), utf16Order(wanted, character));
+    }
+
+    // the UTF-16 chars of the character starting at bytes[at], the first one in the upper half
+    private static long utf16Order(byte[] bytes, int at) {
+        int lead = bytes[at] & 0xFF;
+        int codePoint;
+        if (lead < 0x80) {
+            codePoint = lead;
+        } else if (lead < 0xE0) {
+            codePoint = (lead & 0x1F) << 6 | (bytes[at + 1] & 0x3F);
+        } else if (lead < 0xF0) {
+            codePoint = (lead & 0x0F) << 12 | (bytes[at + 1] & 0x3F) << 6 | (bytes[at + 2] & 0x3F);
+        } else {
+            codePoint = (lead & 0x07) << 18 | (bytes[at + 1] & 0x3F) << 12 | (bytes[at + 2] & 0x3F) << 6
+                    | (bytes[at + 3] & 0x3F);
+        }
+        if (codePoint < 0x10000) {
+            return (long) codePoint << 16;
+        }
+        return (long) Character.highSurrogate(codePoint) << 16 | Character.lowSurrogate(codePoint);
+    }
+
+    /*
+     * a node of a CompactTree, only a tree and a number, so it is made when it is asked for
+     * and two Nodes for the same number are equal
+     */
+    static final class Node implements TreeNode {
+        private final CompactTree tree;
+        private final int index;
+
+        private Node(CompactTree tree, int index) {
+            this.tree = tree;
+            this.index = index;
+        }
+
+        @Override
+        public String getName() {
+            int start = tree.nameStart[index];
+            return new String(tree.names, start, tree.nameStart[index + 1] - start, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return tree.directories.get(index);
+        }
+
+        @Override
+        public Node getParent() {
+            return index == 0 ? null : new Node(tree, tree.parent[index]);
+        }
+
+        @Override
+        public Node getChild(String name) {
+            int child = tree.childOf(index, name);
+            return child < 0 ? null : new Node(tree, child);
+        }
+
+        @Override
+        public List<Node> getSubDirectories() {
+            if (!isDirectory()) {
+                return Collections.emptyList();
+            }
+            List<Node> children = new ArrayList<>();
+            for (int child = index + 1, end = index + tree.totalCount[index]; child < end; child += tree.totalCount[child]) {
+                children.add(new Node(tree, child));
+            }
+            return children;
+        }
+
+        @Override
+        public long getTotalSize() {
+            return tree.totalSize[index];
+        }
+
+        @Override
+        public long getTotalCount() {
+            return tree.totalCount[index];
+        }
+
+        @Override
+        public FileContent getContent() {
+            return tree.contentOf(index);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Node && ((Node) other).tree == tree && ((Node) other).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return PathResolver.pathOf(this);
+        }
+    }
+}
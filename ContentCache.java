@@ -0,0 +1,662 @@
+/*
+ * ContentCache.java keeps the contents of files in memory up to a byte limit and moves the rest to a spill file.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * a file created while the cache is on gets a CachedContent, which holds its bytes in memory
+ * while they are resident. when the resident bytes go over the limit the cache picks victims,
+ * writes their bytes once at the end of the spill file and lets go of them in memory. a read
+ * of a spilled content is a positional read of the spill file. contents never change, so a
+ * content that was read back and is evicted again only has to be dropped, its bytes are still
+ * in the spill file.
+ * a spilled content smaller than a quarter of the limit is read back into memory on a miss,
+ * larger ones are always read straight from the spill file so one cat cannot flush the cache.
+ * with an age bound, a content that was not read for that long is spilled as well, however
+ * much room is left. that is checked whenever the cache is used, it has no thread of its own.
+ * a command reads a content through reader(), which counts one hit or miss and hands out the
+ * bytes, so a command that reads block by block is still one access.
+ *
+ * a hit takes no lock: the entry goes into a small ring buffer of the reading thread's stripe
+ * and the reads are applied to the queues and the sketch together, by whichever reader fills
+ * half a buffer (or the next add or miss). a buffer that is full when nobody drained it loses
+ * its oldest reads, which only makes the order a little less exact.
+ *
+ * two policies choose the victims:
+ *   LRU        the least recently read content goes first.
+ *   TINY_LFU   W-TinyLFU: new and reloaded contents go into a small LRU window (1% of the
+ *              limit). a content leaving the window only gets into the main part if it was
+ *              read more often lately than the content it would push out, which a small
+ *              sketch of 4 bit counters estimates. the main part is a probation and a
+ *              protected LRU (80%), a content read again on probation is protected. so a
+ *              scan over many files read once does not push out the files read all the time.
+ *
+ * the cache only knows a content through a weak reference. a content no file, copy or
+ * snapshot holds any more is collected by the GC and the cache forgets it on its next call,
+ * so removing files needs no bookkeeping here. the spill file only grows while contents are
+ * spilled and starts over when none of them are left.
+ * appended files are not cached: every append makes a new content sharing the chunks of the
+ * old one, which cannot be evicted one version at a time. mounted files are on the host already
+ */
+final class ContentCache implements Closeable {
+    // which contents to evict first
+    enum Policy {
+        LRU, TINY_LFU;
+
+        static Policy parse(String name) {
+            switch (name.toLowerCase()) {
+                case "lru":
+                    return LRU;
+                case "tinylfu":
+                case "w-tinylfu":
+                    return TINY_LFU;
+                default:
+                    throw new IllegalArgumentException("Unknown cache policy " + name + ", use lru or tinylfu");
+            }
+        }
+    }
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // which segment an Entry is in
+    private static final byte NONE = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+    private static final int READ_BUFFER_SIZE = 32; // reads of one stripe, a power of two
+
+    private final long maxBytes;
+    private final long maxAgeNanos; // 0 without an age bound
+    private final Policy policy;
+    private final Path spillFile;
+    private final FileChannel spill;
+    private final ReferenceQueue<CachedContent> collected = new ReferenceQueue<>();
+    private final FrequencySketch sketch;
+    // in access order, the first entry is the next victim. LRU only uses window
+    private final LinkedHashMap<Entry, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Entry, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Entry, Boolean> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long windowMax;
+    private final long protectedMax;
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long spillEnd; // where the next spilled content goes
+    private long spilledBytes; // of contents still alive
+    private long nextId;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // the reads waiting to be applied, READ_BUFFER_SIZE slots for every stripe
+    private final int stripeMask;
+    private final AtomicReferenceArray<Entry> reads;
+    private final AtomicLong[] readsWritten;
+    private final long[] readsDrained; // guarded by the lock
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // maxAgeMillis is 0 for no age bound
+    ContentCache(long maxBytes, long maxAgeMillis, Policy policy, Path spillFile) throws IOException {
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeMillis * 1_000_000;
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+        this.windowMax = policy == Policy.LRU ? maxBytes : Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.protectedMax = (maxBytes - windowMax) * PROTECTED_PERCENT / 100;
+        // about one counter for every 4 KB of the limit
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(64, maxBytes / 4096 / 16)));
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+        this.stripeMask = stripes - 1;
+        this.reads = new AtomicReferenceArray<>(stripes * READ_BUFFER_SIZE);
+        this.readsWritten = new AtomicLong[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readsWritten[i] = new AtomicLong();
+        }
+        this.readsDrained = new long[stripes];
+    }
+
+    // the bookkeeping of one CachedContent, it only refers to the content weakly
+    private static final class Entry extends WeakReference<CachedContent> {
+        final long id;
+        final long size;
+        volatile FileContent resident; // null while spilled
+        volatile long spillOffset = -1; // -1 until it was written to the spill file
+        volatile long lastRead; // System.nanoTime() of the last access, only kept with an age bound
+        byte segment = NONE;
+
+        Entry(CachedContent content, ReferenceQueue<CachedContent> queue, long id, long size, FileContent resident) {
+            super(content, queue);
+            this.id = id;
+            this.size = size;
+            this.resident = resident;
+        }
+    }
+
+    // the content a file holds while the cache is on
+    static final class CachedContent implements FileContent {
+        private final ContentCache cache;
+        private final Entry entry;
+
+        private CachedContent(ContentCache cache, long id, FileContent content) {
+            this.cache = cache;
+            this.entry = new Entry(this, cache.collected, id, content.size(), content);
+        }
+
+        @Override
+        public long size() {
+            return entry.size;
+        }
+
+        // one access, the bytes in memory or a reader of the spill file
+        @Override
+        public FileContent reader() {
+            FileContent bytes = cache.access(entry);
+            return bytes != null ? bytes : new SpilledContent(this);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            reader().writeTo(out);
+        }
+
+        @Override
+        public void writeTo(OutputStream out, long offset, long length) throws IOException {
+            reader().writeTo(out, offset, length);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) {
+            return reader().read(position, buffer, offset, length);
+        }
+
+        // true while the bytes are in memory
+        boolean isResident() {
+            return entry.resident != null;
+        }
+    }
+
+    /*
+     * the bytes of a spilled content, read from the spill file without going through the cache
+     * again. it holds the CachedContent, so the spilled bytes stay while it is used
+     */
+    private static final class SpilledContent implements FileContent {
+        private final CachedContent content;
+
+        SpilledContent(CachedContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.entry.size;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writeTo(out, 0, size());
+        }
+
+        @Override
+        public void writeTo(OutputStream out, long offset, long length) throws IOException {
+            content.cache.writeSpilled(content.entry, out, offset, length);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) {
+            try {
+                return content.cache.readSpilled(content.entry, position, buffer, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * the content to store for a new file, a CachedContent when its bytes are in memory.
+     * storing it can evict others
+     */
+    FileContent add(FileContent content) {
+        if (content.size() == 0 || content instanceof CachedContent || content instanceof MappedContent
+                || content instanceof AppendableContent) {
+            return content;
+        }
+        synchronized (this) {
+            forgetCollected();
+            drainReads();
+            CachedContent cached = new CachedContent(this, nextId++, content);
+            sketch.increment(cached.entry.id);
+            insert(cached.entry);
+            evict();
+            expire();
+            return cached;
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // 0 without an age bound
+    long getMaxAgeMillis() {
+        return maxAgeNanos / 1_000_000;
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    synchronized long getResidentBytes() {
+        forgetCollected();
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    synchronized long getSpilledBytes() {
+        forgetCollected();
+        return spilledBytes;
+    }
+
+    // the size of the spill file, with the space of contents that are gone
+    synchronized long getSpillFileBytes() {
+        return spillEnd;
+    }
+
+    Path getSpillFile() {
+        return spillFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        spill.close();
+    }
+
+    /*
+     * the resident bytes of entry, read back from the spill file first if that is worth it,
+     * or null when they are read from the spill file instead
+     */
+    private FileContent access(Entry entry) {
+        FileContent resident = entry.resident;
+        if (maxAgeNanos > 0) {
+            entry.lastRead = System.nanoTime();
+        }
+        if (resident != null) {
+            hits.incrementAndGet();
+            recordRead(entry);
+            return resident;
+        }
+        misses.incrementAndGet();
+        synchronized (this) {
+            drainReads();
+            sketch.increment(entry.id);
+        }
+        if (entry.size > maxBytes / 4) {
+            return null;
+        }
+        FileContent loaded;
+        try {
+            loaded = reload(entry);
+        } catch (IOException e) {
+            return null; // the read from the spill file will report it
+        }
+        synchronized (this) {
+            forgetCollected();
+            if (entry.resident == null && entry.segment == NONE && !entry.refersTo(null)) {
+                entry.resident = loaded;
+                insert(entry);
+                evict();
+            }
+            expire();
+        }
+        return loaded;
+    }
+
+    /*
+     * putting a hit into the read buffer of this thread's stripe, without a lock. every half
+     * buffer the reader applies the reads, unless another thread is doing that already
+     */
+    private void recordRead(Entry entry) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        long written = readsWritten[stripe].getAndIncrement();
+        reads.lazySet(stripe * READ_BUFFER_SIZE + (int) (written & (READ_BUFFER_SIZE - 1)), entry);
+        if ((written & (READ_BUFFER_SIZE / 2 - 1)) == READ_BUFFER_SIZE / 2 - 1 && draining.compareAndSet(false, true)) {
+            try {
+                synchronized (this) {
+                    drainReads();
+                    expire();
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    // reading the spilled bytes of entry back into memory, outside the lock
+    private FileContent reload(Entry entry) throws IOException {
+        ContentWriter writer = new ContentWriter();
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, entry.size)];
+        for (long position = 0; position < entry.size; ) {
+            int read = readSpilled(entry, position, transfer, 0, (int) Math.min(transfer.length, entry.size - position));
+            if (read <= 0) {
+                throw new IOException("Spill file is shorter than expected: " + spillFile);
+            }
+            writer.append(transfer, 0, read);
+            position += read;
+        }
+        return writer.toContent();
+    }
+
+    private int readSpilled(Entry entry, long position, byte[] buffer, int offset, int length) throws IOException {
+        long count = Math.min(length, entry.size - position);
+        if (position < 0 || count <= 0) {
+            return 0;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) count);
+        while (target.hasRemaining()) {
+            if (spill.read(target, entry.spillOffset + position + target.position() - offset) < 0) {
+                break;
+            }
+        }
+        return target.position() - offset;
+    }
+
+    private void writeSpilled(Entry entry, OutputStream out, long offset, long length) throws IOException {
+        long remaining = Math.min(length, entry.size - offset);
+        if (offset < 0 || remaining <= 0) {
+            return;
+        }
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, remaining)];
+        for (long position = offset; remaining > 0; ) {
+            int read = readSpilled(entry, position, transfer, 0, (int) Math.min(transfer.length, remaining));
+            if (read <= 0) {
+                throw new IOException("Spill file is shorter than expected: " + spillFile);
+            }
+            out.write(transfer, 0, read);
+            position += read;
+            remaining -= read;
+        }
+    }
+
+    // the following methods are called with the lock held
+
+    // applying the reads in the buffers to the sketch and the queues, in the order of each stripe
+    private void drainReads() {
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            long written = readsWritten[stripe].get();
+            // the reads that were written over before they were drained are lost
+            long from = Math.max(readsDrained[stripe], written - READ_BUFFER_SIZE);
+            for (long read = from; read < written; read++) {
+                Entry entry = reads.getAndSet(stripe * READ_BUFFER_SIZE + (int) (read & (READ_BUFFER_SIZE - 1)), null);
+                if (entry != null && !entry.refersTo(null)) {
+                    sketch.increment(entry.id);
+                    if (entry.resident != null) {
+                        touch(entry);
+                    }
+                }
+            }
+            readsDrained[stripe] = written;
+        }
+    }
+
+    /*
+     * spilling the contents that were not read for longer than the age bound. each queue is
+     * in the order of the last reads, so only its old end is looked at
+     */
+    private void expire() {
+        if (maxAgeNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (LinkedHashMap<Entry, Boolean> queue : Arrays.asList(window, probation, protectedEntries)) {
+            Entry oldest;
+            while ((oldest = first(queue)) != null && now - oldest.lastRead > maxAgeNanos && spillOut(oldest)) {
+                // the next oldest
+            }
+        }
+    }
+
+    private void insert(Entry entry) {
+        if (maxAgeNanos > 0) {
+            entry.lastRead = System.nanoTime();
+        }
+        window.put(entry, Boolean.TRUE);
+        entry.segment = WINDOW;
+        windowBytes += entry.size;
+    }
+
+    // moving entry to the end of its queue, a content read again on probation is protected
+    private void touch(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+                window.get(entry);
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                probationBytes -= entry.size;
+                protectedEntries.put(entry, Boolean.TRUE);
+                entry.segment = PROTECTED;
+                protectedBytes += entry.size;
+                // the protected part stays at its share, its oldest go back on probation
+                while (protectedBytes > protectedMax && !protectedEntries.isEmpty()) {
+                    Entry demoted = first(protectedEntries);
+                    protectedEntries.remove(demoted);
+                    protectedBytes -= demoted.size;
+                    probation.put(demoted, Boolean.TRUE);
+                    demoted.segment = PROBATION;
+                    probationBytes += demoted.size;
+                }
+                break;
+            case PROTECTED:
+                protectedEntries.get(entry);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void evict() {
+        if (policy == Policy.LRU) {
+            while (windowBytes > maxBytes && spillOut(first(window))) {
+                // the least recently used went first
+            }
+            return;
+        }
+        long mainMax = maxBytes - windowMax;
+        while (windowBytes > windowMax) {
+            Entry candidate = first(window);
+            window.remove(candidate);
+            windowBytes -= candidate.size;
+            candidate.segment = NONE;
+            // the candidate has to be read more often than each content it pushes out of the main part
+            while (candidate != null && probationBytes + protectedBytes + candidate.size > mainMax) {
+                Entry victim = !probation.isEmpty() ? first(probation)
+                        : !protectedEntries.isEmpty() ? first(protectedEntries) : null;
+                if (victim == null || sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                    if (!spillOut(candidate)) {
+                        insert(candidate); // cannot spill, it stays in memory
+                        return;
+                    }
+                    candidate = null;
+                } else if (!spillOut(victim)) {
+                    insert(candidate);
+                    return;
+                }
+            }
+            if (candidate != null) {
+                probation.put(candidate, Boolean.TRUE);
+                candidate.segment = PROBATION;
+                probationBytes += candidate.size;
+            }
+        }
+    }
+
+    /*
+     * writing the bytes of entry to the spill file if they are not there yet and letting go
+     * of them in memory. false if the spill file cannot be written, the entry then stays
+     */
+    private boolean spillOut(Entry entry) {
+        FileContent resident = entry.resident;
+        if (entry.spillOffset < 0) {
+            try {
+                writeToSpill(resident, spillEnd);
+            } catch (IOException | UncheckedIOException e) {
+                return false;
+            }
+            entry.spillOffset = spillEnd;
+            spillEnd += entry.size;
+            spilledBytes += entry.size;
+        }
+        remove(entry);
+        entry.resident = null;
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    private void writeToSpill(FileContent content, long offset) throws IOException {
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, content.size())];
+        ByteBuffer buffer = ByteBuffer.wrap(transfer);
+        for (long position = 0; position < content.size(); ) {
+            int read = content.read(position, transfer, 0, transfer.length);
+            if (read <= 0) {
+                throw new IOException("Content ended early while spilling it");
+            }
+            buffer.clear().limit(read);
+            while (buffer.hasRemaining()) {
+                spill.write(buffer, offset + position + buffer.position());
+            }
+            position += read;
+        }
+    }
+
+    private void remove(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(entry);
+                windowBytes -= entry.size;
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                probationBytes -= entry.size;
+                break;
+            case PROTECTED:
+                protectedEntries.remove(entry);
+                protectedBytes -= entry.size;
+                break;
+            default:
+                break;
+        }
+        entry.segment = NONE;
+    }
+
+    // letting go of the entries whose contents were collected
+    private void forgetCollected() {
+        Reference<? extends CachedContent> next;
+        while ((next = collected.poll()) != null) {
+            Entry entry = (Entry) next;
+            remove(entry);
+            entry.resident = null;
+            if (entry.spillOffset >= 0) {
+                spilledBytes -= entry.size;
+            }
+        }
+        if (spilledBytes == 0 && spillEnd > 0) {
+            // nothing in the spill file is used any more, it starts over
+            try {
+                spill.truncate(0);
+                spillEnd = 0;
+            } catch (IOException e) {
+                // it is tried again next time, the old bytes are only wasted space
+            }
+        }
+    }
+
+    private static Entry first(LinkedHashMap<Entry, Boolean> queue) {
+        Iterator<Entry> iterator = queue.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /*
+     * a count-min sketch of 4 bit counters, 16 in every long, estimating how often a content
+     * was read lately. every counter is halved after 10 reads per counter, so old popularity fades
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int longs) {
+            int size = Integer.highestOneBit(longs);
+            this.table = new long[size];
+            this.mask = size - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * size * 16);
+        }
+
+        int frequency(long key) {
+            int frequency = 15;
+            for (long seed : SEEDS) {
+                long hash = mix(key, seed);
+                int counter = (int) (hash >>> 60) << 2;
+                frequency = Math.min(frequency, (int) ((table[(int) hash & mask] >>> counter) & 0xF));
+            }
+            return frequency;
+        }
+
+        void increment(long key) {
+            int frequency = frequency(key);
+            if (frequency == 15) {
+                return;
+            }
+            // only the smallest counters grow, which keeps the estimate closer
+            for (long seed : SEEDS) {
+                long hash = mix(key, seed);
+                int index = (int) hash & mask;
+                int counter = (int) (hash >>> 60) << 2;
+                if (((table[index] >>> counter) & 0xF) == frequency) {
+                    table[index] += 1L << counter;
+                }
+            }
+            if (++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static long mix(long key, long seed) {
+            long hash = (key + seed) * 0xBF58476D1CE4E5B9L;
+            hash = (hash ^ (hash >>> 31)) * 0x94D049BB133111EBL;
+            return hash ^ (hash >>> 29);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * ContentSearch.java finds the lines of files that contain a string or match a regular expression, for grep.
+ */
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/*
+ * a pattern without any of the characters a regular expression gives a meaning to (or any
+ * pattern with -F) is searched for as UTF-8 bytes with Boyer-Moore-Horspool: the last byte
+ * of the pattern is compared first and a mismatch skips ahead by up to the length of the
+ * pattern, so most bytes of a file are never looked at and nothing is decoded until a line
+ * matched. other patterns are compiled once and run on every line.
+ * a file is read a block at a time through FileContent.read, only whole lines are searched
+ * and the unfinished last line is kept for the next block, so a file of any size only needs
+ * a buffer as long as its longest line.
+ * searching a subtree collects its files in walk order and scans them on all cores a batch
+ * at a time. the matches of each file are kept until the batch is done and then printed in
+ * walk order, so the output is the same on any number of cores and its memory is bounded
+ * by one batch
+ */
+final class ContentSearch {
+    private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}";
+    private static final int BATCH_FILES = 4096;
+
+    private final String text;
+    private final byte[] literal; // null for a regular expression
+    private final int[] skip; // how far a mismatch on the byte under the last pattern byte moves on
+    private final Pattern regex;
+
+    private ContentSearch(String text, byte[] literal, Pattern regex) {
+        this.text = text;
+        this.literal = literal;
+        this.regex = regex;
+        this.skip = literal == null ? null : skipTable(literal);
+    }
+
+    // a search for pattern, a literal one if fixed is true or pattern has no regex characters
+    static ContentSearch of(String pattern, boolean fixed) {
+        boolean plain = fixed || pattern.chars().noneMatch(c -> REGEX_CHARACTERS.indexOf(c) >= 0);
+        if (plain) {
+            return new ContentSearch(pattern, pattern.getBytes(StandardCharsets.UTF_8), null);
+        }
+        return new ContentSearch(pattern, null, Pattern.compile(pattern));
+    }
+
+    boolean isLiteral() {
+        return literal != null;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    // a matching line, number is 0 when line numbers were not asked for
+    static final class Match {
+        final long number;
+        final String line;
+
+        Match(long number, String line) {
+            this.number = number;
+            this.line = line;
+        }
+    }
+
+    /*
+     * calling action with the full path of every file below directory that matches with
+     * namesOnly, otherwise with "path:line" or "path:number:line" for each matching line,
+     * at most maxPerFile of them for a file. the paths of files that could not be read are
+     * returned
+     */
+    List<String> searchTree(User directory, int maxPerFile, boolean lineNumbers, boolean namesOnly,
+            Consumer<String> action) {
+        List<String> unreadable = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        List<FileContent> contents = new ArrayList<>();
+        if (directory.isFile()) {
+            paths.add(PathResolver.pathOf(directory));
+            contents.add(directory.getContent());
+        }
+        // a walk in the order of find, with its own stack
+        Deque<User> stack = new ArrayDeque<>();
+        Deque<String> prefixes = new ArrayDeque<>();
+        if (directory.isDirectory()) {
+            stack.push(directory);
+            prefixes.push(Finder.prefixOf(directory));
+        }
+        while (!stack.isEmpty()) {
+            User next = stack.pop();
+            String prefix = prefixes.pop();
+            List<User> children = next.getSubDirectories();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                // pushed backwards, so the first child comes out first
+                stack.push(children.get(i));
+                prefixes.push(prefix + "/" + children.get(i).getName());
+            }
+            if (next != directory) {
+                if (next.isFile()) {
+                    paths.add(prefix);
+                    contents.add(next.getContent());
+                }
+                if (paths.size() == BATCH_FILES) {
+                    searchBatch(paths, contents, maxPerFile, lineNumbers, namesOnly, action, unreadable);
+                    paths.clear();
+                    contents.clear();
+                }
+            }
+        }
+        searchBatch(paths, contents, maxPerFile, lineNumbers, namesOnly, action, unreadable);
+        return unreadable;
+    }
+
+    private void searchBatch(List<String> paths, List<FileContent> contents, int maxPerFile, boolean lineNumbers,
+            boolean namesOnly, Consumer<String> action, List<String> unreadable) {
+        // every file has its own slot, so the threads never write to the same one
+        List<List<Match>> found = new ArrayList<>(Collections.nCopies(paths.size(), null));
+        boolean[] failed = new boolean[paths.size()];
+        IntStream.range(0, paths.size()).parallel().forEach(i -> {
+            List<Match> matches = new ArrayList<>();
+            try {
+                // one match is enough to print the name
+                scan(contents.get(i).reader(), namesOnly ? 1 : maxPerFile, lineNumbers, matches::add);
+            } catch (UncheckedIOException e) {
+                failed[i] = true;
+            }
+            found.set(i, matches);
+        });
+        for (int i = 0; i < found.size(); i++) {
+            if (failed[i]) {
+                unreadable.add(paths.get(i));
+                continue;
+            }
+            if (namesOnly) {
+                if (!found.get(i).isEmpty()) {
+                    action.accept(paths.get(i));
+                }
+                continue;
+            }
+            for (Match match : found.get(i)) {
+                action.accept(lineNumbers ? paths.get(i) + ":" + match.number + ":" + match.line
+                        : paths.get(i) + ":" + match.line);
+            }
+        }
+    }
+
+    /*
+     * passing the matching lines of content to action in order, at most maxMatches of them,
+     * returns how many were found. the line numbers are only counted when they are wanted
+     */
+    int scan(FileContent content, int maxMatches, boolean lineNumbers, Consumer<Match> action) {
+        long size = content.size();
+        byte[] buffer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, Math.max(size, 1))];
+        int kept = 0; // bytes of an unfinished line at the start of buffer
+        long position = 0;
+        long line = 1; // the number of the line at counted
+        int matches = 0;
+        while (matches < maxMatches) {
+            if (kept == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2); // a line longer than the buffer
+            }
+            int read = position < size ? content.read(position, buffer, kept, buffer.length - kept) : 0;
+            boolean end = read <= 0;
+            int filled = kept + Math.max(read, 0);
+            position += Math.max(read, 0);
+            int complete = end ? filled : lastNewline(buffer, filled) + 1;
+            if (complete == 0 && !end) {
+                kept = filled;
+                continue;
+            }
+            int counted = 0;
+            int from = 0;
+            while (from < complete && matches < maxMatches) {
+                int lineStart;
+                int lineEnd;
+                if (literal != null) {
+                    int at = indexOf(buffer, from, complete);
+                    if (at < 0) {
+                        break;
+                    }
+                    lineStart = lastNewline(buffer, from, at) + 1;
+                    lineEnd = nextNewline(buffer, at, complete);
+                } else {
+                    lineStart = from;
+                    lineEnd = nextNewline(buffer, from, complete);
+                    String text = new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                    if (!regex.matcher(text).find()) {
+                        from = lineEnd + 1;
+                        continue;
+                    }
+                }
+                if (lineNumbers) {
+                    line += countNewlines(buffer, counted, lineStart);
+                    counted = lineStart;
+                }
+                action.accept(new Match(lineNumbers ? line : 0,
+                        new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8)));
+                matches++;
+                from = lineEnd + 1;
+            }
+            if (end) {
+                break;
+            }
+            if (lineNumbers) {
+                line += countNewlines(buffer, counted, complete);
+            }
+            kept = filled - complete;
+            System.arraycopy(buffer, complete, buffer, 0, kept);
+        }
+        return matches;
+    }
+
+    // Boyer-Moore-Horspool, the first place in text[from .. to) the literal starts at, or -1
+    private int indexOf(byte[] text, int from, int to) {
+        int length = literal.length;
+        if (length == 0) {
+            return from;
+        }
+        int last = length - 1;
+        byte lastByte = literal[last];
+        for (int i = from; i <= to - length; i += skip[text[i + last] & 0xFF]) {
+            if (text[i + last] == lastByte && Arrays.equals(text, i, i + last, literal, 0, last)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // for every byte, how far the pattern can move when that byte is under its last byte
+    private static int[] skipTable(byte[] pattern) {
+        int[] table = new int[256];
+        Arrays.fill(table, Math.max(pattern.length, 1));
+        for (int i = 0; i < pattern.length - 1; i++) {
+            table[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+        return table;
+    }
+
+    private static int lastNewline(byte[] bytes, int end) {
+        return lastNewline(bytes, 0, end);
+    }
+
+    // the last '\n' in bytes[from .. end), or from - 1
+    private static int lastNewline(byte[] bytes, int from, int end) {
+        for (int i = end - 1; i >= from; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return from - 1;
+    }
+
+    // the first '\n' in bytes[from .. end), or end
+    private static int nextNewline(byte[] bytes, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int countNewlines(byte[] bytes, int from, int end) {
+        int count = 0;
+        for (int i = from; i < end; i++) {
+            if (bytes[i] == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
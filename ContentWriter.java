@@ -0,0 +1,98 @@
+/*
+ * ContentWriter.java builds a FileContent piece by piece, for example line by line while a file is typed in.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * ContentWriter collects bytes into heap chunks. When it is turned into a FileContent,
+ * files of at least the off-heap threshold are moved into direct buffers and
+ * smaller files stay as a byte[] chunk list.
+ */
+final class ContentWriter {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // files of this many bytes or more are stored off the heap
+    private static long offHeapThreshold = Long.getLong("filesys.offHeapThreshold", 1024 * 1024);
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current;
+    private int position;
+    private long size;
+
+    static long getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    static void setOffHeapThreshold(long offHeapThreshold) {
+        ContentWriter.offHeapThreshold = offHeapThreshold;
+    }
+
+    long size() {
+        return size;
+    }
+
+    ContentWriter append(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return append(bytes, 0, bytes.length);
+    }
+
+    ContentWriter append(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (current == null) {
+                // small files start with a small chunk, which grows up to CHUNK_SIZE
+                current = new byte[Math.min(CHUNK_SIZE, Math.max(length, 16))];
+                chunks.add(current);
+                position = 0;
+            } else if (position == current.length && current.length < CHUNK_SIZE) {
+                current = Arrays.copyOf(current, Math.min(CHUNK_SIZE, Math.max(current.length * 2, position + length)));
+                chunks.set(chunks.size() - 1, current);
+            } else if (position == current.length) {
+                current = new byte[CHUNK_SIZE];
+                chunks.add(current);
+                position = 0;
+            }
+            int copied = Math.min(length, current.length - position);
+            System.arraycopy(bytes, offset, current, position, copied);
+            position += copied;
+            offset += copied;
+            length -= copied;
+            size += copied;
+        }
+        return this;
+    }
+
+    FileContent toContent() {
+        if (size == 0) {
+            return FileContent.EMPTY;
+        }
+        if (size >= offHeapThreshold) {
+            return toOffHeap();
+        }
+        // trimming the last chunk so small files do not keep a whole chunk
+        byte[][] result = chunks.toArray(new byte[0][]);
+        if (position < current.length) {
+            byte[] last = new byte[position];
+            System.arraycopy(current, 0, last, 0, position);
+            result[result.length - 1] = last;
+        }
+        return new ChunkedContent(result, size);
+    }
+
+    private FileContent toOffHeap() {
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            byte[] chunk = chunks.get(i);
+            int length = i == buffers.length - 1 ? position : chunk.length;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(chunk, 0, length);
+            buffer.flip();
+            buffers[i] = buffer;
+        }
+        return new OffHeapContent(buffers, CHUNK_SIZE, size);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * FileContent.java is the byte storage behind a file in the User tree.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * FileContent holds the bytes of one file. Implementations are immutable once built,
+ * so a file is changed by giving it a new FileContent instead of editing the old one.
+ * (an AppendableContent shares its chunks with the longer contents appended to it, but
+ * the bytes it holds never change either.)
+ */
+interface FileContent {
+
+    FileContent EMPTY = new ChunkedContent(new byte[0][], 0);
+
+    // number of bytes held
+    long size();
+
+    // writing all the bytes to the given stream, chunk by chunk
+    void writeTo(OutputStream out) throws IOException;
+
+    /*
+     * copying up to length bytes from position on into buffer, returns how many were copied
+     * (0 at the end). only the chunks holding those bytes are looked at
+     */
+    int read(long position, byte[] buffer, int offset, int length);
+
+    /*
+     * the content to do all the reads of one command on. a cached content counts one access
+     * here and hands out its bytes, so reading them block by block does not go through the
+     * cache for every block (see ContentCache)
+     */
+    default FileContent reader() {
+        return this;
+    }
+
+    // writing the bytes from offset on, at most length of them, chunk by chunk
+    default void writeTo(OutputStream out, long offset, long length) throws IOException {
+        long remaining = Math.min(length, size() - offset);
+        if (offset < 0 || remaining <= 0) {
+            return;
+        }
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, remaining)];
+        long position = offset;
+        while (remaining > 0) {
+            int read = read(position, transfer, 0, (int) Math.min(transfer.length, remaining));
+            if (read <= 0) {
+                break; // a mounted file that got shorter on the host
+            }
+            out.write(transfer, 0, read);
+            position += read;
+            remaining -= read;
+        }
+    }
+
+    // where the line after the first lines ones starts, or the size if there are not that many
+    default long endOfLines(int lines) {
+        byte[] block = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, Math.max(size(), 1))];
+        long position = 0;
+        int read;
+        while (lines > 0 && (read = read(position, block, 0, block.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (block[i] == '\n' && --lines == 0) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size();
+    }
+
+    // where the last lines lines start, read backwards from the end one block at a time
+    default long startOfLastLines(int lines) {
+        long end = size();
+        // a new line at the very end closes the last line, it does not start another one
+        byte[] last = new byte[1];
+        if (end > 0 && read(end - 1, last, 0, 1) == 1 && last[0] == '\n') {
+            end--;
+        }
+        byte[] block = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, Math.max(end, 1))];
+        long blockEnd = end;
+        while (lines > 0 && blockEnd > 0) {
+            long blockStart = Math.max(0, blockEnd - block.length);
+            int length = (int) (blockEnd - blockStart);
+            for (int read = 0; read < length; ) {
+                int count = read(blockStart + read, block, read, length - read);
+                if (count <= 0) {
+                    return 0;
+                }
+                read += count;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (block[i] == '\n' && --lines == 0) {
+                    return blockStart + i + 1;
+                }
+            }
+            blockEnd = blockStart;
+        }
+        return 0;
+    }
+
+    // building the content of a String, stored as UTF-8
+    static FileContent of(String text) {
+        ContentWriter writer = new ContentWriter();
+        writer.append(text);
+        return writer.toContent();
+    }
+
+    // decoding the whole content as a UTF-8 String, only meant for small files
+    default String asString() {
+        if (size() > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("File too large to turn into a String: " + size() + " bytes");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) size());
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
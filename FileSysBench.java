@@ -0,0 +1,456 @@
+/*
+ * FileSysBench.java measures the file system operations on generated trees.
+ * run with: java FileSysBench, or java FileSysBench --check to only check the kept totals
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * FileSysBench compares the sequential and the parallel walks of find and du
+ * on three tree shapes: a deep chain, a wide flat directory and a balanced tree,
+ * and measures how fast snapshots are saved and loaded, and how a mix of commands
+ * scales with the number of threads sharing one FileSystem.
+ * with --check nothing is measured: random sequences of commands are run and the totals
+ * every directory keeps are compared with a recount after each of them, and a shorter
+ * concurrent mix is checked the same way.
+ */
+public class FileSysBench {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--check")) {
+            checkRandomMutations(200, 500);
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 2; threads <= cores * 2; threads *= 2) {
+                runConcurrent(threads, 20_000);
+            }
+            System.out.println("kept totals match the recount");
+            return;
+        }
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %-10s %10s %14s %14s %8s%n",
+                "shape", "operation", "nodes", "sequential ms", "parallel ms", "speedup");
+        benchWalks("deep", deepChain(2_000, 100));
+        benchWalks("wide", wideDirectory(1_000_000));
+        benchWalks("balanced", balancedTree(6, 6));
+
+        System.out.println();
+        System.out.printf("%-10s %10s %12s %12s %14s %12s %14s%n",
+                "shape", "nodes", "bytes", "save ms", "save nodes/s", "load ms", "load nodes/s");
+        benchSnapshot("wide", wideDirectory(1_000_000));
+        benchSnapshot("balanced", balancedTree(8, 6));
+
+        System.out.println();
+        System.out.printf("%-10s %10s %12s %12s %12s %12s %12s %12s%n", "shape", "nodes", "User B/node",
+                "compact B/node", "User du ms", "compact du ms", "User find ms", "compact find ms");
+        benchCompact("wide", wideDirectory(1_000_000));
+        benchCompact("balanced", balancedTree(8, 6));
+
+        System.out.println();
+        System.out.printf("%-10s %8s %12s %12s %14s%n", "mix", "threads", "operations", "ms", "ops/s");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            benchConcurrent(threads, 200_000);
+        }
+    }
+
+    /*
+     * many sessions changing and reading one FileSystem at once. every thread creates
+     * and removes files in its own directory and in one shared directory and mkdirs and
+     * removes them again with rm -r, while reading with cat, find and du. afterwards the totals kept
+     * by every directory have to match a full recount
+     */
+    private static void benchConcurrent(int threads, int operationsPerThread) {
+        double millis = runConcurrent(threads, operationsPerThread);
+        long operations = (long) threads * operationsPerThread;
+        System.out.printf("%-10s %8d %12d %12.2f %14.0f%n", "mixed", threads, operations, millis,
+                operations / millis * 1000);
+    }
+
+    // the mix of benchConcurrent, returns how many milliseconds it took
+    private static double runConcurrent(int threads, int operationsPerThread) {
+        FileSystem fileSystem = new FileSystem();
+        User root = fileSystem.getRoot();
+        FileContent content = FileContent.of("0123456789");
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        try {
+            fileSystem.mkdir(root, "shared");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            String own = "t" + t;
+            workers.add(new Thread(() -> {
+                try {
+                    User home = fileSystem.mkdir(root, own);
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        String name = "f" + (i % 64);
+                        switch (i % 8) {
+                            case 0:
+                            case 1:
+                                tryCreate(fileSystem, home, name, content);
+                                break;
+                            case 2:
+                                tryCreate(fileSystem, root, "/shared/" + name, content);
+                                break;
+                            case 3:
+                                tryRemove(fileSystem, home, name);
+                                break;
+                            case 4:
+                                tryRemove(fileSystem, root, "/shared/" + name);
+                                break;
+                            case 5:
+                                if (i % 64 == 5) {
+                                    fileSystem.mkdir(home, "d" + i);
+                                    fileSystem.createFile(home, "d" + i + "/x", content);
+                                    fileSystem.removeTree(home, "d" + i);
+                                } else {
+                                    fileSystem.resolve(home, name);
+                                }
+                                break;
+                            case 6:
+                                User file = fileSystem.resolve(root, "/shared/" + name);
+                                if (file != null) {
+                                    file.getContent().asString();
+                                }
+                                break;
+                            default:
+                                if (i % 1024 == 7) {
+                                    Finder.matches(root, name).hasNext();
+                                }
+                                home.getTotalSize();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the concurrent mix");
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("concurrent mix failed", failures.get(0));
+        }
+        String failure = checkTotals(root, User.LIVE);
+        if (failure != null) {
+            throw new IllegalStateException("concurrent mix with " + threads + " threads: " + failure);
+        }
+        return millis;
+    }
+
+    /*
+     * rounds random sequences of steps commands each, on a small tree so the same paths are
+     * hit again and again: mkdir, create, append, rm, rm -r, cp and cp -r, and snapshots.
+     * after every command each directory's kept totals have to match a recount, the live ones
+     * and the ones of the snapshot at its epoch. the seed is printed when a round fails
+     */
+    private static void checkRandomMutations(int rounds, int steps) throws IOException {
+        for (int round = 0; round < rounds; round++) {
+            Random random = new Random(round);
+            FileSystem fileSystem = new FileSystem();
+            User root = fileSystem.getRoot();
+            for (int step = 0; step < steps; step++) {
+                List<User> directories = new ArrayList<>();
+                List<User> files = new ArrayList<>();
+                collect(root, directories, files);
+                User directory = directories.get(random.nextInt(directories.size()));
+                String name = "n" + random.nextInt(8);
+                FileContent content = FileContent.of("x".repeat(random.nextInt(20)));
+                try {
+                    switch (random.nextInt(8)) {
+                        case 0:
+                            fileSystem.mkdir(directory, name);
+                            break;
+                        case 1:
+                        case 2:
+                            fileSystem.createFile(directory, name, content);
+                            break;
+                        case 3:
+                            if (!files.isEmpty()) {
+                                User file = files.get(random.nextInt(files.size()));
+                                fileSystem.append(root, PathResolver.pathOf(file), content);
+                            }
+                            break;
+                        case 4:
+                            if (!files.isEmpty()) {
+                                fileSystem.removeFile(root, PathResolver.pathOf(files.get(random.nextInt(files.size()))));
+                            }
+                            break;
+                        case 5:
+                            if (directory != root) {
+                                fileSystem.removeTree(root, PathResolver.pathOf(directory));
+                            }
+                            break;
+                        case 6:
+                            User source = random.nextBoolean() || files.isEmpty() ? directory
+                                    : files.get(random.nextInt(files.size()));
+                            User target = directories.get(random.nextInt(directories.size()));
+                            fileSystem.copy(root, PathResolver.pathOf(source),
+                                    PathResolver.childPath(target, name), source.isDirectory());
+                            break;
+                        default:
+                            if (fileSystem.getSnapshot("check") != null) {
+                                fileSystem.deleteSnapshot("check");
+                            }
+                            fileSystem.snapshot("check");
+                    }
+                } catch (FileSystemException e) {
+                    // a name that is taken or gone, or a copy into itself, changes nothing
+                }
+                String failure = checkTotals(root, User.LIVE);
+                FileSystem.TreeSnapshot snapshot = fileSystem.getSnapshot("check");
+                if (failure == null && snapshot != null) {
+                    failure = checkTotals(snapshot.root, snapshot.epoch());
+                }
+                if (failure != null) {
+                    throw new IllegalStateException("round " + round + ", step " + step + ": " + failure);
+                }
+            }
+            fileSystem.close();
+        }
+    }
+
+    // the directories and files of the live tree below root
+    private static void collect(User root, List<User> directories, List<User> files) {
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            User user = stack.pop();
+            (user.isFile() ? files : directories).add(user);
+            for (User child : user.getSubDirectories()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /*
+     * comparing the totals every directory below root keeps at epoch with a recount,
+     * returns what differs first or null. the subtrees are added up children first,
+     * from the end of a walk in the order parents come before their children
+     */
+    private static String checkTotals(User root, long epoch) {
+        List<User> order = new ArrayList<>();
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            User user = stack.pop();
+            order.add(user);
+            for (User child : user.getSubDirectories(epoch)) {
+                stack.push(child);
+            }
+        }
+        Map<User, long[]> counted = new IdentityHashMap<>();
+        for (int i = order.size() - 1; i >= 0; i--) {
+            User user = order.get(i);
+            long[] totals = {user.isFile() ? user.getContent(epoch).size() : 0, 1};
+            for (User child : user.getSubDirectories(epoch)) {
+                long[] below = counted.get(child);
+                totals[0] += below[0];
+                totals[1] += below[1];
+            }
+            counted.put(user, totals);
+            if (totals[0] != user.getTotalSize(epoch) || totals[1] != user.getTotalCount(epoch)) {
+                return PathResolver.pathOf(user) + " keeps " + user.getTotalSize(epoch) + " bytes in "
+                        + user.getTotalCount(epoch) + " nodes, a recount finds " + totals[0] + " in " + totals[1];
+            }
+        }
+        return null;
+    }
+
+    private static void tryCreate(FileSystem fileSystem, User directory, String path, FileContent content)
+            throws IOException {
+        try {
+            fileSystem.createFile(directory, path, content);
+        } catch (FileSystemException e) {
+            // another thread created it first
+        }
+    }
+
+    private static void tryRemove(FileSystem fileSystem, User directory, String path) throws IOException {
+        try {
+            fileSystem.removeFile(directory, path);
+        } catch (FileSystemException e) {
+            // another thread removed it first
+        }
+    }
+
+    private static void benchSnapshot(String shape, User root) throws IOException {
+        Path file = Files.createTempFile("filesys-bench", ".fsys");
+        try {
+            long nodes = root.getTotalCount();
+            double saveMillis = time(() -> {
+                try {
+                    Snapshot.save(root, file);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            double loadMillis = time(() -> {
+                try {
+                    Snapshot.load(file);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            User loaded = Snapshot.load(file);
+            if (loaded.getTotalCount() != nodes || loaded.getTotalSize() != root.getTotalSize()) {
+                throw new IllegalStateException("loaded snapshot differs from the saved tree on " + shape);
+            }
+            System.out.printf("%-10s %10d %12d %12.2f %14.0f %12.2f %14.0f%n", shape, nodes, Files.size(file),
+                    saveMillis, nodes / saveMillis * 1000, loadMillis, nodes / loadMillis * 1000);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /*
+     * the heap a loaded snapshot takes as Users and as a CompactTree, and du --recount and
+     * find over all of it in both
+     */
+    private static void benchCompact(String shape, User root) throws IOException {
+        Path file = Files.createTempFile("filesys-bench", ".fsys");
+        try {
+            long nodes = Snapshot.save(root, file);
+            long before = usedHeap();
+            User loaded = Snapshot.load(file);
+            long users = usedHeap() - before;
+            before = usedHeap();
+            CompactTree compact = Snapshot.loadCompact(file);
+            long arrays = usedHeap() - before;
+            TreeNode compactRoot = compact.getRoot();
+
+            double userDu = time(() -> ParallelWalker.totalSize(loaded, Integer.MAX_VALUE));
+            double compactDu = time(() -> compact.recount(compactRoot));
+            NamePattern target = NamePattern.of("target");
+            double userFind = time(() -> ParallelWalker.find(loaded, "target", Integer.MAX_VALUE));
+            double compactFind = time(() -> compact.find(compactRoot, target, match -> { }));
+
+            List<String> found = new ArrayList<>();
+            compact.find(compactRoot, target, match -> found.add(match.toString()));
+            if (compact.recount(compactRoot) != loaded.getTotalSize() || compact.size() != loaded.getTotalCount()
+                    || !found.equals(ParallelWalker.find(loaded, "target", Integer.MAX_VALUE))) {
+                throw new IllegalStateException("compact tree differs from the loaded Users on " + shape);
+            }
+            System.out.printf("%-10s %10d %12.1f %12.1f %12.2f %12.2f %12.2f %12.2f%n", shape, nodes,
+                    (double) users / nodes, (double) arrays / nodes, userDu, compactDu, userFind, compactFind);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void benchWalks(String shape, User root) {
+        long nodes = root.getTotalCount();
+
+        double sequentialFind = time(() -> ParallelWalker.find(root, "target", Integer.MAX_VALUE));
+        double parallelFind = time(() -> ParallelWalker.find(root, "target"));
+        report(shape, "find", nodes, sequentialFind, parallelFind);
+
+        double sequentialDu = time(() -> ParallelWalker.totalSize(root, Integer.MAX_VALUE));
+        double parallelDu = time(() -> ParallelWalker.totalSize(root));
+        report(shape, "du", nodes, sequentialDu, parallelDu);
+
+        // both modes have to agree
+        List<String> expected = ParallelWalker.find(root, "target", Integer.MAX_VALUE);
+        if (!expected.equals(ParallelWalker.find(root, "target"))) {
+            throw new IllegalStateException("parallel find differs from sequential find on " + shape);
+        }
+        List<String> streamed = new ArrayList<>();
+        Finder.matches(root, "target").forEachRemaining(streamed::add);
+        if (!expected.equals(streamed)) {
+            throw new IllegalStateException("streamed find differs from sequential find on " + shape);
+        }
+        if (ParallelWalker.totalSize(root) != root.getTotalSize()) {
+            throw new IllegalStateException("parallel du differs from the kept total on " + shape);
+        }
+    }
+
+    private static void report(String shape, String operation, long nodes, double sequential, double parallel) {
+        System.out.printf("%-10s %-10s %10d %14.2f %14.2f %7.2fx%n",
+                shape, operation, nodes, sequential, parallel, sequential / parallel);
+    }
+
+    // average milliseconds of one run after warming up
+    private static double time(Runnable operation) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            operation.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+    }
+
+    // a chain of directories, each holding filesPerLevel files and the next directory
+    static User deepChain(int depth, int filesPerLevel) {
+        User root = new User(null, "root", true);
+        User directory = root;
+        for (int level = 0; level < depth; level++) {
+            for (int i = 0; i < filesPerLevel; i++) {
+                new User(directory, (i == 0 ? "target" : "file" + i), false, "content " + i);
+            }
+            directory = new User(directory, "dir" + level, true);
+        }
+        return root;
+    }
+
+    // a single directory holding files files
+    static User wideDirectory(int files) {
+        User root = new User(null, "root", true);
+        for (int i = 0; i < files; i++) {
+            new User(root, (i % 1000 == 0 ? "target" + i / 1000 : "file" + i), false, "content " + i);
+        }
+        new User(root, "target", false, "found");
+        return root;
+    }
+
+    // a tree where every directory has fanOut subdirectories and fanOut files, depth levels deep
+    static User balancedTree(int fanOut, int depth) {
+        User root = new User(null, "root", true);
+        fill(root, fanOut, depth);
+        return root;
+    }
+
+    private static void fill(User directory, int fanOut, int depth) {
+        for (int i = 0; i < fanOut; i++) {
+            new User(directory, (i == 0 ? "target" : "file" + i), false, "content " + i);
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            fill(new User(directory, "dir" + i, true), fanOut, depth - 1);
+        }
+    }
+}
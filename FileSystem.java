@@ -0,0 +1,974 @@
+/*
+ * FileSystem.java is the file system tree and the operations on it, shared by every session.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * FileSystem can be used by many threads at once. a command that changes a directory
+ * holds that directory's write lock while it checks, journals and makes the change, so
+ * changes to different directories run in parallel and the journal holds the changes of
+ * one directory in the order they were made. reading commands only take short read locks
+ * while looking up children, and file content is read without any lock (see User).
+ * save, load and compact need the whole tree to hold still, so every change also holds
+ * the shared side of treeLock and those three take its exclusive side.
+ * paths are resolved from the current directory a session passes in, each session
+ * keeps its own.
+ */
+final class FileSystem implements Closeable {
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+    private final Store store; // null when the tree only lives in memory
+    private final Metrics metrics = new Metrics();
+    private volatile User root;
+    private volatile long generation; // counts how often load replaced the tree
+    private volatile BlobStore blobs; // null unless file contents are deduplicated
+    private volatile NameIndex index; // null unless find looks names up instead of walking
+    private volatile ContentCache cache; // null unless file contents can be spilled to disk
+    private final Set<User> mounts = ConcurrentHashMap.newKeySet(); // mounts not listed completely yet
+    private final Map<String, TreeSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final Map<String, CompactTree> views = new ConcurrentHashMap<>(); // read-only, see CompactTree
+    private final Watches watches = new Watches();
+    // removed directories are reclaimed and copies indexed here, one at a time in the order they were queued
+    private final ExecutorService background = Executors.newSingleThreadExecutor(FileSystem::newBackgroundThread);
+    private final AtomicLong reclaiming = new AtomicLong();
+
+    // a named point in time of the tree, read through the Users at its pinned epoch
+    static final class TreeSnapshot {
+        final String name;
+        final User root;
+        final Versions.Pin pin;
+        final long created; // milliseconds since the epoch
+
+        TreeSnapshot(String name, User root, Versions.Pin pin, long created) {
+            this.name = name;
+            this.root = root;
+            this.pin = pin;
+            this.created = created;
+        }
+
+        long epoch() {
+            return pin.epoch;
+        }
+
+        // the User a path from the root of the snapshot points to, or null
+        User resolve(String path) {
+            return PathResolver.resolve(root, root, path, pin.epoch);
+        }
+    }
+
+    FileSystem() {
+        this(new User(null, "root", true), null);
+    }
+
+    private FileSystem(User root, Store store) {
+        this.root = root;
+        this.store = store;
+    }
+
+    // a file system kept in a data directory, see Store
+    static FileSystem open(Path dataDirectory, Journal.FsyncPolicy policy, long syncMillis) throws IOException {
+        Store store = Store.open(dataDirectory, policy, syncMillis);
+        FileSystem fileSystem = new FileSystem(store.getRoot(), store);
+        fileSystem.mounts.addAll(store.getMounts());
+        return fileSystem;
+    }
+
+    User getRoot() {
+        return root;
+    }
+
+    // the counters of all commands run by the sessions on this file system
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+     * storing every distinct file content once from now on, files already in the tree
+     * are moved to the shared contents as well
+     */
+    void deduplicate() {
+        treeLock.writeLock().lock();
+        try {
+            if (blobs == null) {
+                blobs = new BlobStore();
+                adoptContents(root);
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // keeping an index of all names from now on, find uses it instead of walking the tree
+    void buildIndex() {
+        treeLock.writeLock().lock();
+        try {
+            if (index == null) {
+                NameIndex names = new NameIndex();
+                names.addTree(root);
+                index = names;
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * keeping at most maxBytes of the contents of new files in memory from now on, and with
+     * maxAgeMillis above 0 none that was not read for that long, the rest go to spillFile
+     * (see ContentCache). files already in the tree are left as they are
+     */
+    void useCache(long maxBytes, long maxAgeMillis, ContentCache.Policy policy, Path spillFile) throws IOException {
+        treeLock.writeLock().lock();
+        try {
+            if (cache != null) {
+                throw new FileSystemException("The content cache is already on");
+            }
+            cache = new ContentCache(maxBytes, maxAgeMillis, policy, spillFile);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // the content cache, null when all contents stay in memory
+    ContentCache getCache() {
+        return cache;
+    }
+
+    /*
+     * telling listener about the changes in directory, or with recursive below it, in batches
+     * on another thread, or with polled whenever the caller drains the Watch (see Watches).
+     * capacity is how many changed paths may wait
+     */
+    Watches.Watch watch(User directory, boolean recursive, boolean polled, int capacity,
+            Consumer<List<Watches.Event>> listener) {
+        return watches.watch(directory, recursive, polled, capacity, listener);
+    }
+
+    void unwatch(Watches.Watch watch) {
+        watches.cancel(watch);
+    }
+
+    Watches getWatches() {
+        return watches;
+    }
+
+    // the name index, null when find walks the tree
+    NameIndex getIndex() {
+        return index;
+    }
+
+    // the shared contents, null when contents are not deduplicated
+    BlobStore getBlobs() {
+        return blobs;
+    }
+
+    // changes whenever load replaces the tree, so sessions know to go back to the root
+    long getGeneration() {
+        return generation;
+    }
+
+    // the User a path points to from currentDirectory, or null
+    User resolve(User currentDirectory, String path) {
+        return PathResolver.resolve(root, currentDirectory, path);
+    }
+
+    // creating a file with content, the directory it goes in has to exist
+    User createFile(User currentDirectory, String path, FileContent content) throws IOException {
+        User parent = parentOf(currentDirectory, path);
+        String fileName = PathResolver.fileName(path);
+        // caching and hashing the content happen before any lock is taken
+        ContentCache contents = cache;
+        FileContent cached = contents != null ? contents.add(content) : content;
+        BlobStore shared = blobs;
+        FileContent stored = shared != null ? shared.intern(cached) : cached;
+        boolean created = false;
+        Lock changing = lockForChange(parent);
+        try {
+            checkNotRemoved(parent);
+            if (parent.getChild(fileName) != null) {
+                throw new FileSystemException("File or directory with the same name already exists.");
+            }
+            journal(Journal.CREATE, PathResolver.childPath(parent, fileName), content);
+            User newFile = new User(parent, fileName, false); // isDirectory set here as false
+            newFile.setContent(stored);
+            created = true;
+            NameIndex names = index;
+            if (names != null) {
+                names.add(newFile);
+            }
+            watches.changed(parent, fileName, Watches.Kind.CREATE, false);
+            return newFile;
+        } finally {
+            unlock(changing);
+            if (!created && shared != null) {
+                shared.release(stored);
+            }
+        }
+    }
+
+    void removeFile(User currentDirectory, String path) throws IOException {
+        User file = resolve(currentDirectory, path);
+        if (file != null && file.isDirectory() && !file.isRoot()) {
+            throw new FileSystemException(path + " is a directory, use rmdir or rm -r");
+        }
+        if (file == null || !file.isFile() || file.isRoot()) {
+            throw new FileSystemException("Unable to remove file " + path + ". File not found or is not a file.");
+        }
+        User parent = file.getParent();
+        treeLock.readLock().lock();
+        try {
+            // the file's monitor comes before its parent's lock, like in User.detach
+            synchronized (file) {
+                parent.writeLock().lock();
+                try {
+                    if (file.isDetached()) {
+                        throw new FileSystemException("Unable to remove file " + path + ". File not found or is not a file.");
+                    }
+                    journal(Journal.REMOVE_FILE, PathResolver.pathOf(file), null);
+                    file.detach();
+                    reclaim(file);
+                    watches.changed(parent, file.getName(), Watches.Kind.DELETE, false);
+                } finally {
+                    parent.writeLock().unlock();
+                }
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * adding addition at the end of a file, in the time it takes to copy addition (see AppendableContent).
+     * a file that was appended to no longer shares its content with others, hashing all of
+     * it again for every append would make growing a file quadratic
+     */
+    User append(User currentDirectory, String path, FileContent addition) throws IOException {
+        User file = resolve(currentDirectory, path);
+        if (file == null || !file.isFile()) {
+            throw new FileSystemException("Cannot append to " + path + ". File not found or is not a file.");
+        }
+        FileContent old;
+        treeLock.readLock().lock();
+        try {
+            // the file's monitor orders appends to it, and a removed file is closed under it
+            synchronized (file) {
+                if (file.isDetached()) {
+                    throw new FileSystemException("Cannot append to " + path + ". File not found or is not a file.");
+                }
+                old = file.getContent();
+                // the bytes are copied before the append is journaled, so a failed copy is never replayed
+                FileContent appended;
+                try {
+                    appended = AppendableContent.append(old, addition);
+                } catch (IOException e) {
+                    throw new FileSystemException("Cannot append to " + path + ": " + e.getMessage());
+                }
+                journal(Journal.APPEND, PathResolver.pathOf(file), addition);
+                file.setContent(appended);
+                watches.changed(file.getParent(), file.getName(), Watches.Kind.MODIFY, false);
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
+        BlobStore shared = blobs;
+        if (shared != null) {
+            shared.release(old);
+        }
+        return file;
+    }
+
+    /*
+     * showing the host directory hostDirectory at path. nothing is read from the host yet,
+     * the children are listed when they are first needed and files are read through a
+     * memory mapping (see User.mount and MappedContent). nothing is ever written to the host,
+     * changes inside a mount only happen in the tree
+     */
+    User mount(User currentDirectory, String hostDirectory, String path) throws IOException {
+        Path host = Paths.get(hostDirectory).toAbsolutePath().normalize();
+        if (!Files.isDirectory(host)) {
+            throw new FileSystemException("Cannot mount " + hostDirectory + ". Not a directory on the host.");
+        }
+        User parent = parentOf(currentDirectory, path);
+        String name = PathResolver.fileName(path);
+        Lock changing = lockForChange(parent);
+        try {
+            checkNotRemoved(parent);
+            if (parent.getChild(name) != null) {
+                throw new FileSystemException("Directory or file with the same name already exists.");
+            }
+            journal(Journal.MOUNT, PathResolver.childPath(parent, name), FileContent.of(host.toString()));
+            User mount = User.mount(parent, name, host);
+            mounts.add(mount);
+            watches.changed(parent, name, Watches.Kind.CREATE, true);
+            NameIndex names = index;
+            if (names != null) {
+                names.addLazily(mount);
+            }
+            return mount;
+        } finally {
+            unlock(changing);
+        }
+    }
+
+    // creating a directory, the directory it goes in has to exist
+    User mkdir(User currentDirectory, String path) throws IOException {
+        User parent = parentOf(currentDirectory, path);
+        String dirName = PathResolver.fileName(path);
+        Lock changing = lockForChange(parent);
+        try {
+            checkNotRemoved(parent);
+            if (parent.getChild(dirName) != null) {
+                throw new FileSystemException("Directory or file with the same name already exists.");
+            }
+            journal(Journal.MKDIR, PathResolver.childPath(parent, dirName), null);
+            User directory = new User(parent, dirName, true);
+            NameIndex names = index;
+            if (names != null) {
+                names.add(directory);
+            }
+            watches.changed(parent, dirName, Watches.Kind.CREATE, true);
+            return directory;
+        } finally {
+            unlock(changing);
+        }
+    }
+
+    /*
+     * removing an empty directory. the root and the directories above currentDirectory
+     * cannot be removed
+     */
+    void rmdir(User currentDirectory, String path) throws IOException {
+        User parent = PathResolver.resolveParent(root, currentDirectory, path);
+        // handle the case of an empty directory
+        if (parent != null && !parent.hasSubDirectories()) {
+            throw new FileSystemException("Nothing inside the folder.");
+        }
+        removeDirectory(currentDirectory, path, false);
+    }
+
+    /*
+     * removing a file, or a directory with everything below it. the directory is only
+     * unlinked from its parent here, what it holds is given back in the background
+     */
+    void removeTree(User currentDirectory, String path) throws IOException {
+        User user = resolve(currentDirectory, path);
+        if (user != null && user.isFile()) {
+            removeFile(currentDirectory, path);
+        } else {
+            removeDirectory(currentDirectory, path, true);
+        }
+    }
+
+    private void removeDirectory(User currentDirectory, String path, boolean recursive) throws IOException {
+        User directory = resolve(currentDirectory, path);
+        if (directory == null || !directory.isDirectory() || isAncestorOf(directory, currentDirectory)) {
+            throw new FileSystemException("Directory '" + path + "' not found or not a directory");
+        }
+        User parent = directory.getParent();
+        treeLock.readLock().lock();
+        try {
+            // the directory's own lock comes before its parent's, like in User.detach
+            directory.writeLock().lock();
+            parent.writeLock().lock();
+            try {
+                if (directory.isDetached()) {
+                    throw new FileSystemException("Directory '" + path + "' not found or not a directory");
+                }
+                if (!recursive && directory.hasSubDirectories()) {
+                    throw new FileSystemException("Directory '" + path + "' is not empty, use rm -r");
+                }
+                String removedPath = PathResolver.pathOf(directory);
+                journal(Journal.RMDIR, removedPath, null);
+                directory.detach();
+                reclaim(directory);
+                watches.changed(parent, directory.getName(), Watches.Kind.DELETE, true);
+                watches.removed(directory, removedPath);
+            } finally {
+                parent.writeLock().unlock();
+                directory.writeLock().unlock();
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    // the children of a directory in alphabetical order, a copy taken under its read lock
+    List<User> ls(User directory) {
+        return directory.getSubDirectories();
+    }
+
+    /*
+     * passing the full path of every User named targetName below directory to action,
+     * large subtrees are searched in parallel, the order stays the same
+     */
+    void find(User directory, String targetName, Consumer<CharSequence> action) {
+        NameIndex names = index;
+        if (names != null) {
+            names.find(directory, NamePattern.of(targetName), action);
+            return;
+        }
+        if (directory.getTotalCount() > ParallelWalker.DEFAULT_THRESHOLD) {
+            for (String path : ParallelWalker.find(directory, targetName)) {
+                action.accept(path);
+            }
+        } else {
+            Finder.forEachMatch(directory, targetName, action);
+        }
+    }
+
+    /*
+     * searching the contents of every file below directory, or of directory itself if it is a
+     * file, on all cores (see ContentSearch). matches are passed to action in walk order, the
+     * paths of files that could not be read are returned
+     */
+    List<String> grep(User directory, ContentSearch search, int maxPerFile, boolean lineNumbers, boolean namesOnly,
+            Consumer<String> action) {
+        return search.searchTree(directory, maxPerFile, lineNumbers, namesOnly, action);
+    }
+
+    // the bytes of all files below directory, kept up to date by User or counted again by walking
+    long du(User directory, boolean recount) {
+        listMounts(directory);
+        return recount ? ParallelWalker.totalSize(directory) : directory.getTotalSize();
+    }
+
+    /*
+     * copying the file or directory at sourcePath to targetPath, in O(1) also for a
+     * directory (see User). copying into an existing directory keeps the name of the source.
+     * the source can be in a snapshot, written as <snapshot>:<path>
+     */
+    User copy(User currentDirectory, String sourcePath, String targetPath, boolean recursive) throws IOException {
+        TreeSnapshot from = null;
+        String path = sourcePath;
+        int colon = sourcePath.indexOf(':');
+        if (colon > 0 && snapshots.containsKey(sourcePath.substring(0, colon))) {
+            from = snapshots.get(sourcePath.substring(0, colon));
+            path = sourcePath.substring(colon + 1);
+        }
+        User listed = null;
+        if (from == null) {
+            // the copy is read at the epoch pinned below, so everything mounted inside has to be listed
+            // before. that reads the host, so it is done before the write lock stops every session
+            treeLock.readLock().lock();
+            try {
+                listed = resolve(currentDirectory, path);
+                if (listed != null) {
+                    listMounts(listed);
+                }
+            } finally {
+                treeLock.readLock().unlock();
+            }
+        }
+        // the copy reads its source at a pinned epoch, so no change may be half done while it is made
+        treeLock.writeLock().lock();
+        boolean writing = true;
+        try {
+            User source = from != null ? from.resolve(path) : resolve(currentDirectory, path);
+            if (source == null) {
+                throw new FileSystemException("Cannot copy " + sourcePath + ". File or directory not found.");
+            }
+            if (source.isDirectory() && !recursive) {
+                throw new FileSystemException(sourcePath + " is a directory, use cp -r");
+            }
+            User target = resolve(currentDirectory, targetPath);
+            User parent;
+            String name;
+            if (target != null && target.isDirectory()) {
+                parent = target;
+                name = source.getName();
+            } else {
+                parent = parentOf(currentDirectory, targetPath);
+                name = PathResolver.fileName(targetPath);
+            }
+            checkNotRemoved(parent);
+            if (parent.getChild(name) != null) {
+                throw new FileSystemException("File or directory with the same name already exists.");
+            }
+            if (from == null && source != listed) {
+                listMounts(source); // moved since it was listed
+            } else if (from == null) {
+                // only a mount made below the source since it was listed is left
+                for (User mount : mounts) {
+                    if (isAncestorOf(source, mount)) {
+                        listMounts(mount);
+                    }
+                }
+            }
+            Versions.Pin pin = from != null ? from.pin.retain() : source.getVersions().pin();
+            User copy;
+            long sequence;
+            try {
+                if (from == null) {
+                    sequence = appendJournal(Journal.COPY, PathResolver.childPath(parent, name),
+                            FileContent.of(PathResolver.pathOf(source)));
+                } else {
+                    // a snapshot is not kept in the data directory, so the copied Users are journaled one by one
+                    sequence = journalTree(source, pin.epoch, PathResolver.childPath(parent, name));
+                }
+                BlobStore shared = blobs;
+                copy = User.copy(parent, name, source, pin, shared != null ? shared::intern : content -> content);
+                watches.changed(parent, name, Watches.Kind.CREATE, copy.isDirectory());
+                NameIndex names = index;
+                if (names != null) {
+                    names.addLazily(copy);
+                }
+                if (copy.isDirectory()) {
+                    // a copy not filled in pins the tree, and every change keeps history while it does.
+                    // indexing walks the whole copy too, which fills it
+                    background.execute(names != null ? () -> names.indexBelow(copy) : () -> fillCopy(copy));
+                }
+            } finally {
+                pin.release();
+            }
+            // waiting for the journal only needs compact kept out, the other sessions can go on
+            treeLock.readLock().lock();
+            treeLock.writeLock().unlock();
+            writing = false;
+            commitJournal(sequence);
+            return copy;
+        } finally {
+            if (writing) {
+                treeLock.writeLock().unlock();
+            } else {
+                treeLock.readLock().unlock();
+            }
+        }
+    }
+
+    // taking a named snapshot of the whole tree, in O(1)
+    void snapshot(String name) throws IOException {
+        if (name.isEmpty() || name.contains(":") || name.contains("/")) {
+            throw new FileSystemException("Invalid snapshot name " + name);
+        }
+        treeLock.writeLock().lock();
+        try {
+            if (snapshots.containsKey(name)) {
+                throw new FileSystemException("Snapshot '" + name + "' already exists.");
+            }
+            snapshots.put(name, new TreeSnapshot(name, root, root.getVersions().pin(), System.currentTimeMillis()));
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // dropping a snapshot, the older states only it needed are let go at the next changes
+    void deleteSnapshot(String name) throws IOException {
+        TreeSnapshot removed = snapshots.remove(name);
+        if (removed == null) {
+            throw new FileSystemException("Snapshot '" + name + "' not found");
+        }
+        removed.pin.release();
+    }
+
+    // the snapshot called name, or null
+    TreeSnapshot getSnapshot(String name) {
+        return snapshots.get(name);
+    }
+
+    // all snapshots, oldest first
+    List<TreeSnapshot> getSnapshots() {
+        List<TreeSnapshot> all = new ArrayList<>(snapshots.values());
+        all.sort(Comparator.comparingLong(snapshot -> snapshot.created));
+        return all;
+    }
+
+    /*
+     * opening a read-only CompactTree called name of a snapshot file, or of the tree as it is
+     * now when file is null. a view does not change with the tree and outlives a load
+     */
+    CompactTree openView(String name, Path file) throws IOException {
+        if (name.isEmpty() || name.contains(":") || name.contains("/")) {
+            throw new FileSystemException("Invalid view name " + name);
+        }
+        if (views.containsKey(name)) {
+            throw new FileSystemException("View '" + name + "' already exists.");
+        }
+        CompactTree tree;
+        if (file != null) {
+            tree = Snapshot.loadCompact(file);
+        } else {
+            treeLock.writeLock().lock();
+            try {
+                tree = CompactTree.of(root);
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+        if (views.putIfAbsent(name, tree) != null) {
+            throw new FileSystemException("View '" + name + "' already exists.");
+        }
+        return tree;
+    }
+
+    void closeView(String name) throws IOException {
+        if (views.remove(name) == null) {
+            throw new FileSystemException("View '" + name + "' not found");
+        }
+    }
+
+    // the view called name, or null
+    CompactTree getView(String name) {
+        return views.get(name);
+    }
+
+    // all views by name
+    Map<String, CompactTree> getViews() {
+        return new TreeMap<>(views);
+    }
+
+    /*
+     * the bytes the files below directory really take up: a content shared by several
+     * files, through deduplication or a copy, is only counted once
+     */
+    long physicalSize(User directory) {
+        Set<FileContent> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long[] size = new long[1];
+        forEachFile(directory, file -> {
+            FileContent content = file.getContent();
+            if (seen.add(content)) {
+                size[0] += content.size();
+            }
+        });
+        return size[0];
+    }
+
+    // writing the whole tree to a snapshot file, returns the number of Users written
+    long save(Path file) throws IOException {
+        treeLock.writeLock().lock();
+        try {
+            return Snapshot.save(root, file);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // replacing the whole tree with the one in a snapshot file
+    User load(Path file) throws IOException {
+        User loaded = Snapshot.load(file);
+        treeLock.writeLock().lock();
+        try {
+            // the journal only holds changes to the old tree, so the data directory starts over from this one
+            if (store != null) {
+                store.compact(loaded);
+            }
+            if (blobs != null) {
+                blobs = new BlobStore();
+                adoptContents(loaded);
+            }
+            if (index != null) {
+                NameIndex names = new NameIndex();
+                names.addTree(loaded);
+                index = names;
+            }
+            // snapshots are of the old tree, which goes away with them
+            for (TreeSnapshot dropped : snapshots.values()) {
+                dropped.pin.release();
+            }
+            snapshots.clear();
+            root = loaded;
+            generation++;
+            watches.replaced();
+            return loaded;
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // folding the journal of the data directory into a new snapshot
+    void compact() throws IOException {
+        if (store == null) {
+            throw new FileSystemException("No data directory, start FileSys with --data <dir>");
+        }
+        treeLock.writeLock().lock();
+        try {
+            store.compact(root);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // letting the removed subtrees still queued give back what they hold
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (store != null) {
+            treeLock.writeLock().lock();
+            try {
+                store.close();
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+        watches.close();
+        // the spill file is deleted, a content spilled to it cannot be read afterwards
+        ContentCache contents = cache;
+        if (contents != null) {
+            contents.close();
+        }
+    }
+
+    private static Thread newBackgroundThread(Runnable task) {
+        Thread thread = new Thread(task, "filesystem-background");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // giving every file below directory its shared content
+    private void adoptContents(User directory) {
+        BlobStore shared = blobs;
+        forEachFile(directory, file -> {
+            // mounted files stay on the host, hashing them would read them all
+            if (!(file.getContent() instanceof MappedContent)) {
+                file.setContent(shared.intern(file.getContent()));
+            }
+        });
+    }
+
+    /*
+     * cleaning up after a removed file right away, and after a removed directory on the
+     * background thread, so removing a large subtree costs the command no more than removing a file
+     */
+    private void reclaim(User removed) {
+        BlobStore shared = blobs;
+        NameIndex names = index;
+        if (removed.isFile()) {
+            if (shared != null) {
+                shared.release(removed.getContent());
+            }
+            if (names != null) {
+                names.remove(removed);
+            }
+            return;
+        }
+        reclaiming.incrementAndGet();
+        try {
+            background.execute(() -> {
+                try {
+                    reclaim(removed, shared, names);
+                } finally {
+                    reclaiming.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing, the walk is done here instead
+            reclaiming.decrementAndGet();
+            reclaim(removed, shared, names);
+        }
+    }
+
+    /*
+     * giving back what a removed subtree holds: the shared contents of its files, its names in
+     * the index and the pins of copied directories whose children were never made, which are not
+     * made now either. every directory is closed on the way, so a session still inside cannot add
+     * to it afterwards
+     */
+    static void reclaim(User removed, BlobStore shared, NameIndex names) {
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(removed);
+        while (!stack.isEmpty()) {
+            User next = stack.pop();
+            if (names != null) {
+                names.remove(next);
+            }
+            if (next.isFile()) {
+                FileContent content = next.closeRemovedFile();
+                if (shared != null) {
+                    shared.release(content);
+                }
+            } else {
+                for (User child : next.closeRemoved()) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    // the removed directories the reclaimer has not walked yet
+    long getPendingReclaims() {
+        return reclaiming.get();
+    }
+
+    // every file in the subtree of user, user itself if it is a file. mounts not listed yet are left out
+    private static void forEachFile(User user, Consumer<User> action) {
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(user);
+        while (!stack.isEmpty()) {
+            User next = stack.pop();
+            if (next.isFile()) {
+                action.accept(next);
+            } else if (!next.isMountPending()) {
+                for (User child : next.getSubDirectories()) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    // making every directory of a copy, in the background, one directory at a time like a read would
+    private static void fillCopy(User copy) {
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(copy);
+        while (!stack.isEmpty()) {
+            User next = stack.pop();
+            // a removed copy lets go of its pin through Versions, making it now would only waste the memory
+            if (next.isDetached()) {
+                continue;
+            }
+            for (User child : next.getSubDirectories()) {
+                if (child.isDirectory()) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    /*
+     * listing every mounted directory below directory that was not listed yet, so the totals
+     * below it are complete. only the attributes of the host files are read, and the
+     * sizes stay cached in the tree afterwards
+     */
+    private void listMounts(User directory) {
+        listMounts(mounts, directory);
+    }
+
+    // the same for the given mounts, the ones listed completely are removed from them
+    static void listMounts(Set<User> mounts, User directory) {
+        for (Iterator<User> pending = mounts.iterator(); pending.hasNext(); ) {
+            User mount = pending.next();
+            boolean whole = isAncestorOf(directory, mount);
+            if (mount.isDetached()) {
+                pending.remove();
+            } else if (whole || isAncestorOf(mount, directory)) {
+                Deque<User> stack = new ArrayDeque<>();
+                stack.push(whole ? mount : directory);
+                while (!stack.isEmpty()) {
+                    for (User child : stack.pop().getSubDirectories()) {
+                        if (child.isDirectory()) {
+                            stack.push(child);
+                        }
+                    }
+                }
+                if (whole) {
+                    pending.remove();
+                }
+            }
+        }
+    }
+
+    /*
+     * writing MKDIR and CREATE records that build the tree below source, as it was at epoch, at path.
+     * returns the sequence number of the last one for commitJournal
+     */
+    private long journalTree(User source, long epoch, String path) throws IOException {
+        long sequence = 0;
+        if (store == null) {
+            return sequence;
+        }
+        Deque<User> users = new ArrayDeque<>();
+        Deque<String> paths = new ArrayDeque<>();
+        users.push(source);
+        paths.push(path);
+        while (!users.isEmpty()) {
+            User user = users.pop();
+            String userPath = paths.pop();
+            if (user.isFile()) {
+                sequence = appendJournal(Journal.CREATE, userPath, user.getContent(epoch));
+                continue;
+            }
+            sequence = appendJournal(Journal.MKDIR, userPath, null);
+            for (User child : user.getSubDirectories(epoch)) {
+                users.push(child);
+                paths.push(userPath + "/" + child.getName());
+            }
+        }
+        return sequence;
+    }
+
+    // checking whether directory is user itself or one of the directories above it
+    static boolean isAncestorOf(User directory, User user) {
+        for (User node = user; node != null; node = node.getParent()) {
+            if (node == directory) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private User parentOf(User currentDirectory, String path) throws FileSystemException {
+        User parent = PathResolver.resolveParent(root, currentDirectory, path);
+        if (parent == null || PathResolver.fileName(path) == null) {
+            throw new FileSystemException("Invalid path specified.");
+        }
+        return parent;
+    }
+
+    /*
+     * a session can still be in a directory another one removed. a directory closed by the
+     * reclaimer takes no new children, the ones added before that are reclaimed with it
+     */
+    private static void checkNotRemoved(User directory) throws FileSystemException {
+        if (directory.isDetached()) {
+            throw new FileSystemException("Directory " + directory.getName() + " was removed.");
+        }
+    }
+
+    // taking the shared tree lock and the write lock of the directory about to change
+    private Lock lockForChange(User directory) {
+        treeLock.readLock().lock();
+        Lock lock = directory.writeLock();
+        lock.lock();
+        return lock;
+    }
+
+    private void unlock(Lock lock) {
+        lock.unlock();
+        treeLock.readLock().unlock();
+    }
+
+    // writing a change to the journal before it is made, if the tree is kept in a data directory
+    private void journal(byte operation, String path, FileContent content) throws IOException {
+        if (store != null) {
+            store.log(operation, path, content);
+        }
+    }
+
+    // the same without waiting for the fsync, see commitJournal. returns 0 without a store
+    private long appendJournal(byte operation, String path, FileContent content) throws IOException {
+        return store != null ? store.append(operation, path, content) : 0;
+    }
+
+    private void commitJournal(long sequence) throws IOException {
+        if (store != null && sequence > 0) {
+            store.commit(sequence);
+        }
+    }
+}
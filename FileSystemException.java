@@ -0,0 +1,16 @@
+/*
+ * FileSystemException.java is thrown when a command cannot be carried out on the tree.
+ */
+
+import java.io.IOException;
+
+/*
+ * the message is meant for the user and is printed after "ERROR: ".
+ */
+class FileSystemException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    FileSystemException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Finder.java walks a subtree and hands out the full path of every User with a given name or glob.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/*
+ * Finder carries one StringBuilder down the walk. the name of a directory is appended
+ * when the walk goes into it and cut off again when it comes back, so reporting a match
+ * only costs the length of its name instead of rebuilding the path from the root.
+ * matches can be taken one at a time from an Iterator, or handed to a callback without
+ * creating a String for each match. the walk uses its own stack, not recursion.
+ */
+final class Finder {
+
+    private Finder() {
+    }
+
+    /*
+     * calling action with the full path of every match below directory, in sorted walk order.
+     * the CharSequence is only valid during the call, so keep toString() of it if needed
+     */
+    static void forEachMatch(User directory, String targetName, Consumer<CharSequence> action) {
+        forEachMatch(directory, targetName, User.LIVE, action);
+    }
+
+    // the same in the tree as it was at epoch, see Versions
+    static void forEachMatch(User directory, String targetName, long epoch, Consumer<CharSequence> action) {
+        Walk walk = new Walk(directory, NamePattern.of(targetName), epoch);
+        while (walk.advance()) {
+            action.accept(walk.path);
+        }
+    }
+
+    // the full paths of the matches below directory, found lazily as the Iterator is used
+    static Iterator<String> matches(User directory, String targetName) {
+        Walk walk = new Walk(directory, NamePattern.of(targetName), User.LIVE);
+        return new Iterator<String>() {
+            private boolean ready;
+            private boolean found;
+
+            @Override
+            public boolean hasNext() {
+                if (!ready) {
+                    found = walk.advance();
+                    ready = true;
+                }
+                return found;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return walk.path.toString();
+            }
+        };
+    }
+
+    // the path a child name is appended to, "" for the root so its children become "/name"
+    static String prefixOf(TreeNode directory) {
+        return directory.isRoot() ? "" : PathResolver.pathOf(directory);
+    }
+
+    // a paused depth first walk, the path of the last match is left in path
+    private static final class Walk {
+        final StringBuilder path;
+        private final NamePattern target;
+        private final long epoch;
+        private final Deque<Iterator<User>> iterators = new ArrayDeque<>();
+        private int[] lengths = new int[16]; // length of path for each directory on the stack
+        private int depth;
+
+        Walk(User directory, NamePattern target, long epoch) {
+            this.path = new StringBuilder(prefixOf(directory));
+            this.target = target;
+            this.epoch = epoch;
+            push(directory);
+        }
+
+        // moving on to the next match, false when the walk is over
+        boolean advance() {
+            while (depth > 0) {
+                Iterator<User> iterator = iterators.peek();
+                if (!iterator.hasNext()) {
+                    iterators.pop();
+                    depth--;
+                    continue;
+                }
+                User child = iterator.next();
+                path.setLength(lengths[depth - 1]);
+                path.append('/').append(child.getName());
+                boolean match = target.matches(child.getName());
+                boolean hasChildren = epoch == User.LIVE ? child.hasSubDirectories() : child.getTotalCount(epoch) > 1;
+                if (child.isDirectory() && hasChildren) {
+                    push(child);
+                }
+                if (match) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void push(User directory) {
+            if (depth == lengths.length) {
+                lengths = Arrays.copyOf(lengths, depth * 2);
+            }
+            lengths[depth++] = path.length();
+            iterators.push(directory.getSubDirectories(epoch).iterator());
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Journal.java appends every change of the tree to a log file before the change is made.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/*
+ * the journal file is a header ("FSJL" magic, int version) followed by records:
+ *
+ *   long body length, body, int CRC32 of the body
+ *   body: byte operation, varint path length, path (UTF-8),
+ *         and for CREATE and APPEND also varint content length and the content bytes
+ *         (for APPEND only the added bytes), for COPY the same with the path of the
+ *         source as content and for MOUNT with the host directory as content
+ *
+ * records are collected in a buffer and written to the file in groups. when they are
+ * forced to disk depends on the FsyncPolicy:
+ *   ALWAYS  commit waits until the record is on disk. threads committing at the same
+ *           time share one fsync (group commit)
+ *   BATCH   a background thread writes and forces the buffer every few milliseconds,
+ *           a crash loses at most the changes of that last interval
+ *   NONE    records are written when the buffer is full and the OS decides when they reach the disk
+ * a record cut short by a crash fails its length or checksum and is dropped on replay.
+ */
+final class Journal implements Closeable {
+    static final byte CREATE = 1;
+    static final byte REMOVE_FILE = 2;
+    static final byte MKDIR = 3;
+    static final byte RMDIR = 4;
+    static final byte COPY = 5;
+    static final byte APPEND = 6;
+    static final byte MOUNT = 7;
+
+    private static final int MAGIC = 0x46534A4C; // "FSJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    enum FsyncPolicy {
+        ALWAYS, BATCH, NONE;
+
+        static FsyncPolicy parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // what replay does with each record
+    interface Replayer {
+        void apply(byte operation, String path, FileContent content);
+    }
+
+    private final FileChannel channel;
+    private final ChannelWriter writer;
+    private final FsyncPolicy policy;
+    private final CRC32 checksum = new CRC32();
+    private final ScheduledExecutorService flusher;
+    private long appended; // number of records appended so far
+    private long durable; // number of records known to be on disk
+    private boolean syncing;
+    private IOException failure;
+
+    private Journal(FileChannel channel, FsyncPolicy policy, long syncMillis) {
+        this.channel = channel;
+        this.writer = new ChannelWriter(channel, BUFFER_SIZE);
+        this.policy = policy;
+        if (policy == FsyncPolicy.BATCH) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::syncQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /*
+     * opening a journal for appending, creating it if needed.
+     * replay it first, so a torn record at its end has been cut off
+     */
+    static Journal open(Path file, FsyncPolicy policy, long syncMillis) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Journal journal = new Journal(channel, policy, syncMillis);
+        if (channel.size() < HEADER_SIZE) {
+            channel.truncate(0);
+            journal.writer.writeInt(MAGIC);
+            journal.writer.writeInt(VERSION);
+            journal.writer.flush();
+            channel.force(true);
+        }
+        channel.position(channel.size());
+        return journal;
+    }
+
+    /*
+     * adding a record to the buffer, returns its sequence number for commit.
+     * content is only used for CREATE, COPY, APPEND and MOUNT (see hasContent)
+     */
+    synchronized long append(byte operation, String path, FileContent content) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal failed earlier", failure);
+        }
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        long bodyLength = 1 + varLongSize(pathBytes.length) + pathBytes.length;
+        if (hasContent(operation)) {
+            bodyLength += varLongSize(content.size()) + content.size();
+        }
+        try {
+            writer.writeLong(bodyLength);
+            checksum.reset();
+            writer.setChecksum(checksum);
+            writer.writeByte(operation);
+            writer.writeVarLong(pathBytes.length);
+            writer.write(pathBytes, 0, pathBytes.length);
+            if (hasContent(operation)) {
+                writer.writeVarLong(content.size());
+                content.writeTo(writer);
+            }
+            writer.setChecksum(null);
+            writer.writeInt((int) checksum.getValue());
+        } catch (IOException e) {
+            // part of the record may be in the file, so nothing more can be appended after it
+            failure = e;
+            writer.setChecksum(null);
+            throw e;
+        }
+        return ++appended;
+    }
+
+    // returning once the record with this sequence number is as safe as the policy promises
+    void commit(long sequence) throws IOException {
+        if (policy == FsyncPolicy.ALWAYS) {
+            syncUpTo(sequence);
+        }
+    }
+
+    // writing and forcing every record appended so far
+    void sync() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        syncUpTo(sequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * reading every complete record of a journal in order. a torn or corrupt record
+     * at the end is cut off the file. returns the number of records replayed
+     */
+    static long replay(Path file, Replayer replayer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                return 0;
+            }
+            CRC32 checksum = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 1 << 16), checksum));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a FileSys journal: " + file);
+            }
+            long goodLength = HEADER_SIZE;
+            long records = 0;
+            while (true) {
+                long bodyLength;
+                byte operation;
+                String path;
+                FileContent content = null;
+                try {
+                    bodyLength = in.readLong();
+                    if (bodyLength <= 0 || goodLength + 12 + bodyLength > channel.size()) {
+                        break;
+                    }
+                    checksum.reset();
+                    operation = in.readByte();
+                    path = readString(in, bodyLength);
+                    if (hasContent(operation)) {
+                        content = readContent(in, readVarLong(in));
+                    }
+                    long expected = checksum.getValue();
+                    if (in.readInt() != (int) expected) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                replayer.apply(operation, path, content);
+                records++;
+                goodLength += 8 + bodyLength + 4;
+            }
+            if (goodLength < channel.size()) {
+                channel.truncate(goodLength);
+                channel.force(true);
+            }
+            return records;
+        }
+    }
+
+    private static boolean hasContent(byte operation) {
+        return operation == CREATE || operation == COPY || operation == APPEND || operation == MOUNT;
+    }
+
+    private void syncUpTo(long sequence) throws IOException {
+        long target;
+        synchronized (this) {
+            while (syncing && durable < sequence) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            // this thread writes and forces everything appended so far, also for the threads waiting
+            syncing = true;
+            target = appended;
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                syncing = false;
+                notifyAll();
+                throw e;
+            }
+        }
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (forced) {
+                    durable = Math.max(durable, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte next = in.readByte();
+            value |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt journal: length too long");
+    }
+
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        long length = readVarLong(in);
+        if (length > limit) {
+            // a length that cannot be right, treated like a record cut short
+            throw new EOFException("Corrupt journal record");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static FileContent readContent(DataInputStream in, long length) throws IOException {
+        ContentWriter contentWriter = new ContentWriter();
+        byte[] piece = new byte[(int) Math.min(length, ContentWriter.CHUNK_SIZE)];
+        while (length > 0) {
+            int size = (int) Math.min(length, piece.length);
+            in.readFully(piece, 0, size);
+            contentWriter.append(piece, 0, size);
+            length -= size;
+        }
+        return contentWriter.toContent();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * LoadGenerator.java runs many scripted clients against a FileSys server and reports throughput and latency.
+ * run with: java LoadGenerator [--host localhost] [--port <port>] [--clients 1000] [--ops 1000]
+ * without --port a server is started inside the load generator on a free port
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * every client connects, makes a directory of its own and goes there, then repeats
+ * create, cat, ls, du, pwd, find and rm on a file in it. all clients connect first and
+ * start together, and the time of every command is recorded from sending it to reading
+ * the prompt that ends its answer
+ */
+public class LoadGenerator {
+    private static final byte[] PROMPT = Server.PROMPT.getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = -1;
+        int clients = 1000;
+        int operations = 1000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--ops":
+                    operations = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("ERROR: Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        Server server = null;
+        if (port < 0) {
+            server = new Server(new FileSystem(), 0);
+            port = server.getPort();
+            Server local = server;
+            Thread serving = new Thread(() -> {
+                try {
+                    local.serve();
+                } catch (IOException e) {
+                    System.out.println("ERROR: Local server stopped: " + e.getMessage());
+                }
+            }, "local-server");
+            serving.setDaemon(true);
+            serving.start();
+        }
+        try {
+            run(host, port, clients, operations);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static void run(String host, int port, int clients, int operations) throws Exception {
+        ExecutorService executor = Server.newThreadPerTaskExecutor("client");
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            results.add(executor.submit(() -> {
+                boolean ready = false;
+                try (Client client = new Client(host, port)) {
+                    client.command("mkdir /lg" + id);
+                    client.command("cd /lg" + id);
+                    ready = true;
+                    connected.countDown();
+                    start.await();
+                    return client.runScript(operations);
+                } finally {
+                    // a client that failed to connect must not keep the others waiting
+                    if (!ready) {
+                        connected.countDown();
+                    }
+                }
+            }));
+        }
+        connected.await();
+        long begin = System.nanoTime();
+        start.countDown();
+
+        long[] latencies = new long[clients * operations];
+        int filled = 0;
+        for (Future<long[]> result : results) {
+            long[] clientLatencies = result.get();
+            System.arraycopy(clientLatencies, 0, latencies, filled, clientLatencies.length);
+            filled += clientLatencies.length;
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        System.out.printf("clients %d, operations %d, %.2f s, %.0f ops/s%n",
+                clients, latencies.length, seconds, latencies.length / seconds);
+        System.out.printf("latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e3);
+    }
+
+    // the latency in microseconds below which the given fraction of the sorted latencies lies
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e3;
+    }
+
+    // one connection to the server, sending commands and waiting for their answers
+    private static final class Client implements Closeable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+
+        Client(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            awaitPrompt();
+        }
+
+        // the latency of every command of the script in nanoseconds
+        long[] runScript(int operations) throws IOException {
+            long[] latencies = new long[operations];
+            for (int i = 0; i < operations; i++) {
+                String file = "f" + (i / 7 % 32);
+                long begin = System.nanoTime();
+                switch (i % 7) {
+                    case 0:
+                        // the content follows the create line right away
+                        command("create " + file + "\ncontent of " + file + " " + i + "~");
+                        break;
+                    case 1:
+                        command("cat " + file);
+                        break;
+                    case 2:
+                        command("ls");
+                        break;
+                    case 3:
+                        command("du");
+                        break;
+                    case 4:
+                        command("pwd");
+                        break;
+                    case 5:
+                        command("find " + file);
+                        break;
+                    default:
+                        command("rm " + file);
+                }
+                latencies[i] = System.nanoTime() - begin;
+            }
+            return latencies;
+        }
+
+        void command(String lines) throws IOException {
+            out.write((lines + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            awaitPrompt();
+        }
+
+        // reading the answer up to and including the prompt that ends it
+        private void awaitPrompt() throws IOException {
+            int matched = 0;
+            while (matched < PROMPT.length) {
+                int next = in.read();
+                if (next < 0) {
+                    throw new EOFException("server closed the connection");
+                }
+                if (next == PROMPT[matched]) {
+                    matched++;
+                } else {
+                    matched = next == PROMPT[0] ? 1 : 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * MappedContent.java serves the bytes of a file on the host straight from a memory mapping.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * MappedContent is the content of a file in a mounted host directory. the size is the one
+ * the host reported when the directory was listed, so du never opens the file.
+ * a file smaller than MAP_THRESHOLD is read with positional reads of a channel opened for
+ * the read, so a grep over a mount of many small files keeps nothing open. larger files are
+ * mapped on their first read and the bytes are paged in by the OS as they are read, never
+ * copied onto the heap. a mapping is at most WINDOW_SIZE bytes, larger files get several.
+ * the OS only allows so many mappings per process (vm.max_map_count), so all MappedContents
+ * share one LRU of at most MAX_MAPPED_PARTS of them. an evicted mapping is unmapped once
+ * the last read using it is done, unmapping it under a reader would crash the JVM.
+ * the host file is expected not to shrink while it is mounted, like with any mmap
+ */
+final class MappedContent implements FileContent {
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final int MAX_MAPPED_PARTS = 4096;
+    // in access order, the first one is unmapped first. guarded by itself
+    private static final LinkedHashMap<MappedContent, Mapping> MAPPINGS = new LinkedHashMap<>(16, 0.75f, true);
+    private static int mappedParts; // guarded by MAPPINGS
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        // unmapping a buffer right away needs sun.misc.Unsafe, without it the GC unmaps it later
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final Path path;
+    private final long offset; // where the bytes start in the host file
+    private final long size;
+
+    // the mappings of one file and the reads using them right now
+    private static final class Mapping {
+        final ByteBuffer[] parts;
+        int readers; // guarded by MAPPINGS
+        boolean evicted;
+
+        Mapping(ByteBuffer[] parts) {
+            this.parts = parts;
+        }
+    }
+
+    MappedContent(Path path, long size) {
+        this(path, 0, size);
+    }
+
+    // size bytes inside a larger host file, for example a file in a saved snapshot
+    MappedContent(Path path, long offset, long size) {
+        this.path = path;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, Math.max(size, 1))];
+        if (size < MAP_THRESHOLD) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                int read;
+                for (long position = 0; (read = readChannel(channel, position, transfer, 0, transfer.length)) > 0; ) {
+                    out.write(transfer, 0, read);
+                    position += read;
+                }
+            }
+            return;
+        }
+        Mapping mapping = acquire();
+        try {
+            for (ByteBuffer part : mapping.parts) {
+                ByteBuffer view = part.duplicate(); // own position, so concurrent readers do not clash
+                while (view.hasRemaining()) {
+                    int length = Math.min(transfer.length, view.remaining());
+                    view.get(transfer, 0, length);
+                    out.write(transfer, 0, length);
+                }
+            }
+        } finally {
+            release(mapping);
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+        try {
+            if (size < MAP_THRESHOLD) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return readChannel(channel, position, buffer, offset, length);
+                }
+            }
+            Mapping mapping = acquire();
+            try {
+                return readMapped(mapping.parts, position, buffer, offset, length);
+            } finally {
+                release(mapping);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // reading from the channel until length bytes, the end of the content or the end of the host file
+    private int readChannel(FileChannel channel, long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        long count = Math.min(length, size - position);
+        if (position < 0 || count <= 0) {
+            return 0;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) count);
+        while (target.hasRemaining()) {
+            if (channel.read(target, this.offset + position + target.position() - offset) < 0) {
+                break; // the host file got shorter than it was when listed
+            }
+        }
+        return target.position() - offset;
+    }
+
+    private static int readMapped(ByteBuffer[] mapped, long position, byte[] buffer, int offset, int length) {
+        int copied = 0;
+        while (copied < length) {
+            int index = (int) (position / WINDOW_SIZE);
+            if (index >= mapped.length || position % WINDOW_SIZE >= mapped[index].limit()) {
+                break; // the end, or the host file got shorter than it was when listed
+            }
+            ByteBuffer part = mapped[index];
+            int from = (int) (position % WINDOW_SIZE);
+            int count = Math.min(length - copied, part.limit() - from);
+            part.get(from, buffer, offset + copied, count);
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+
+    /*
+     * the mappings of the file, made on the first read and kept while the LRU has room.
+     * every acquire is followed by a release when the read is done
+     */
+    private Mapping acquire() throws IOException {
+        synchronized (MAPPINGS) {
+            Mapping mapping = MAPPINGS.get(this);
+            if (mapping != null) {
+                mapping.readers++;
+                return mapping;
+            }
+        }
+        // mapping outside the lock, two readers may both map the file and one mapping is dropped
+        Mapping made = new Mapping(map());
+        List<Mapping> unused = new ArrayList<>();
+        Mapping mapping;
+        synchronized (MAPPINGS) {
+            mapping = MAPPINGS.get(this);
+            if (mapping != null) {
+                unused.add(made);
+            } else {
+                mapping = made;
+                MAPPINGS.put(this, made);
+                mappedParts += made.parts.length;
+                Iterator<Mapping> oldest = MAPPINGS.values().iterator();
+                while (mappedParts > MAX_MAPPED_PARTS && oldest.hasNext()) {
+                    Mapping evicted = oldest.next();
+                    if (evicted == made) {
+                        continue;
+                    }
+                    oldest.remove();
+                    mappedParts -= evicted.parts.length;
+                    evicted.evicted = true;
+                    if (evicted.readers == 0) {
+                        unused.add(evicted);
+                    }
+                }
+            }
+            mapping.readers++;
+        }
+        for (Mapping gone : unused) {
+            unmap(gone);
+        }
+        return mapping;
+    }
+
+    private static void release(Mapping mapping) {
+        synchronized (MAPPINGS) {
+            if (--mapping.readers > 0 || !mapping.evicted) {
+                return;
+            }
+        }
+        unmap(mapping);
+    }
+
+    // the mappings stay valid after the channel is closed
+    private ByteBuffer[] map() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = Math.max(0, Math.min(size, channel.size() - offset));
+            ByteBuffer[] mapped = new ByteBuffer[(int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < mapped.length; i++) {
+                long start = i * WINDOW_SIZE;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                        Math.min(WINDOW_SIZE, length - start));
+            }
+            return mapped;
+        }
+    }
+
+    private static void unmap(Mapping mapping) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        for (ByteBuffer part : mapping.parts) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, part);
+            } catch (ReflectiveOperationException e) {
+                return; // left to the GC
+            }
+        }
+    }
+}
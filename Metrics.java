@@ -0,0 +1,157 @@
+/*
+ * Metrics.java counts every command run on a FileSystem with its errors, latency and allocations.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * the metrics are shared by all sessions of a FileSystem and are always on.
+ * each known command has a fixed slot with its counters and a LatencyHistogram,
+ * so recording a command only adds to existing counters and allocates nothing.
+ * the bytes a command allocated are read from the JVM's per-thread allocation
+ * counter where the JVM has one.
+ * the size of the tree comes from the totals the root keeps, so it costs nothing to read.
+ * stats prints them, and they can be written in the Prometheus text format
+ */
+final class Metrics {
+    static final String[] COMMANDS = {
+        "create", "cat", "append", "head", "tail", "rm", "mkdir", "rmdir", "cd", "ls", "du", "pwd",
+        "find", "grep", "cp", "mount", "snapshot", "view", "watch", "unwatch", "save", "load", "compact", "flush", "stats", "exit", "other"
+    };
+    private static final Map<String, Integer> INDEX = new HashMap<>();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            INDEX.put(COMMANDS[i], i);
+        }
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    private final LongAdder[] allocated = new LongAdder[COMMANDS.length];
+
+    Metrics() {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+            allocated[i] = new LongAdder();
+        }
+    }
+
+    // the slot of a command, unknown commands share the "other" slot
+    static int indexOf(String command) {
+        Integer index = INDEX.get(command);
+        return index != null ? index : COMMANDS.length - 1;
+    }
+
+    // the bytes the current thread allocated so far, 0 where the JVM cannot tell
+    static long allocatedBytes() {
+        if (ALLOCATIONS == null) {
+            return 0;
+        }
+        long bytes = ALLOCATIONS.getCurrentThreadAllocatedBytes();
+        return Math.max(bytes, 0);
+    }
+
+    void record(int command, long nanos, long allocatedBytes, boolean failed) {
+        latencies[command].record(nanos);
+        if (allocatedBytes > 0) {
+            allocated[command].add(allocatedBytes);
+        }
+        if (failed) {
+            errors[command].increment();
+        }
+    }
+
+    // printing a line for every command that ran and the size of the tree
+    void print(PrintStream out, User root) {
+        out.printf("%-8s %10s %8s %10s %10s %10s %10s %12s%n",
+                "command", "count", "errors", "p50 us", "p99 us", "p999 us", "max us", "alloc B/op");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            out.printf("%-8s %10d %8d %10.1f %10.1f %10.1f %10.1f %12d%n", COMMANDS[i], count, errors[i].sum(),
+                    histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+                    histogram.percentile(0.999) / 1e3, histogram.getMax() / 1e3, allocated[i].sum() / count);
+        }
+        out.println("tree: " + root.getTotalCount() + " files and directories, " + root.getTotalSize() + " bytes");
+    }
+
+    /*
+     * writing the metrics in the Prometheus text format, to a temporary file that is then
+     * moved over the given one, so a collector never reads half a file
+     */
+    void writePrometheus(Path file, User root) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(temporary))) {
+            out.println("# HELP filesys_commands_total Commands run.");
+            out.println("# TYPE filesys_commands_total counter");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                out.println("filesys_commands_total" + label(i) + " " + latencies[i].getCount());
+            }
+            out.println("# HELP filesys_command_errors_total Commands that printed an error.");
+            out.println("# TYPE filesys_command_errors_total counter");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                out.println("filesys_command_errors_total" + label(i) + " " + errors[i].sum());
+            }
+            out.println("# HELP filesys_command_latency_seconds Time to run a command.");
+            out.println("# TYPE filesys_command_latency_seconds summary");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                LatencyHistogram histogram = latencies[i];
+                for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+                    out.println("filesys_command_latency_seconds{command=\"" + COMMANDS[i] + "\",quantile=\""
+                            + quantile + "\"} " + seconds(histogram.percentile(quantile)));
+                }
+                out.println("filesys_command_latency_seconds_sum" + label(i) + " " + seconds(histogram.getSum()));
+                out.println("filesys_command_latency_seconds_count" + label(i) + " " + histogram.getCount());
+            }
+            out.println("# HELP filesys_command_allocated_bytes_total Bytes allocated while running commands.");
+            out.println("# TYPE filesys_command_allocated_bytes_total counter");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                out.println("filesys_command_allocated_bytes_total" + label(i) + " " + allocated[i].sum());
+            }
+            out.println("# HELP filesys_tree_nodes Files and directories in the tree.");
+            out.println("# TYPE filesys_tree_nodes gauge");
+            out.println("filesys_tree_nodes " + root.getTotalCount());
+            out.println("# HELP filesys_tree_bytes Bytes of file content in the tree.");
+            out.println("# TYPE filesys_tree_bytes gauge");
+            out.println("filesys_tree_bytes " + root.getTotalSize());
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String label(int command) {
+        return "{command=\"" + COMMANDS[command] + "\"}";
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    // the JVM's per-thread allocation counter, or null if it has none
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * NameIndex.java finds the Users with a given name without walking the tree.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+
+/*
+ * NameIndex maps every name to the Users called that, and keeps the names sorted so a
+ * glob only looks at the names starting with its prefix. FileSystem adds a User when it
+ * is created and takes it out when it is removed.
+ * a find looks up the candidates and keeps the ones below the directory it started in by
+ * following their parents up, so it costs the number of candidates times their depth
+ * instead of the size of the subtree. numbering the tree (Euler tour intervals) would make
+ * that check O(1), but every mkdir would have to renumber, so parents are followed instead.
+ * a copied directory is indexed in the background, since copying is O(1) (see User), and
+ * find walks it until then. a mounted directory is only indexed once the host was listed
+ * for it, by ls, cd or a find walking it, so indexing never reads a host tree nobody looked
+ * at. a removed User can stay in the index until the reclaimer gets to it, find skips it
+ */
+final class NameIndex {
+    // the User with a name, or a Set of them when there are more, most names are only used once
+    private final ConcurrentHashMap<String, Object> users = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    private final Set<User> unindexed = ConcurrentHashMap.newKeySet(); // copies not indexed yet
+    private final Set<User> unlisted = ConcurrentHashMap.newKeySet(); // mounts the host was not listed for yet
+
+    void add(User user) {
+        users.compute(user.getName(), (name, found) -> {
+            if (found == null) {
+                names.add(name);
+                return user;
+            }
+            if (found == user) {
+                return found;
+            }
+            @SuppressWarnings("unchecked")
+            Set<User> set = found instanceof User ? newSet((User) found) : (Set<User>) found;
+            set.add(user);
+            return set;
+        });
+    }
+
+    void remove(User user) {
+        unindexed.remove(user);
+        unlisted.remove(user);
+        users.computeIfPresent(user.getName(), (name, found) -> {
+            if (found instanceof Set) {
+                Set<?> set = (Set<?>) found;
+                set.remove(user);
+                if (!set.isEmpty()) {
+                    return set;
+                }
+            } else if (found != user) {
+                return found;
+            }
+            names.remove(name);
+            return null;
+        });
+    }
+
+    /*
+     * indexing user and everything below it, copied directories are filled on the way.
+     * mounted directories that were not listed yet are left as they are, until find sees them listed
+     */
+    void addTree(User user) {
+        Deque<User> stack = new ArrayDeque<>();
+        stack.push(user);
+        while (!stack.isEmpty()) {
+            User next = stack.pop();
+            add(next);
+            if (next.isMountPending()) {
+                unlisted.add(next);
+                continue;
+            }
+            for (User child : next.getSubDirectories()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    // a copied directory, only its own name is indexed until indexBelow has run. a mount waits to be listed
+    void addLazily(User directory) {
+        add(directory);
+        if (directory.isMountPending()) {
+            unlisted.add(directory);
+        } else if (directory.isDirectory()) {
+            unindexed.add(directory);
+        }
+    }
+
+    // indexing what is below a copied directory, run in the background
+    void indexBelow(User directory) {
+        addTree(directory);
+        unindexed.remove(directory);
+    }
+
+    int getNameCount() {
+        return names.size();
+    }
+
+    int getUnindexedCount() {
+        return unindexed.size() + unlisted.size();
+    }
+
+    /*
+     * passing the full path of every User below directory matching pattern to action,
+     * in the same order a walk of the subtree would find them
+     */
+    void find(User directory, NamePattern pattern, Consumer<CharSequence> action) {
+        // the mounts listed since the last find are indexed now, they cost nothing more on the host
+        for (User mount : unlisted) {
+            if (!mount.isMountPending()) {
+                addTree(mount);
+                unlisted.remove(mount);
+            }
+        }
+        List<String> paths = new ArrayList<>();
+        for (User candidate : candidates(pattern)) {
+            if (isBelow(candidate, directory)) {
+                paths.add(PathResolver.pathOf(candidate));
+            }
+        }
+        boolean walked = false;
+        for (Set<User> lazySet : List.of(unindexed, unlisted)) {
+            for (User lazy : lazySet) {
+                User from = isBelow(lazy, directory) ? lazy
+                        : lazy == directory || isBelow(directory, lazy) ? directory : null;
+                if (from != null) {
+                    // walking a mount lists it, the next find indexes it
+                    Finder.forEachMatch(from, pattern.text(), match -> paths.add(match.toString()));
+                    walked = true;
+                }
+            }
+        }
+        paths.sort(NameIndex::compareWalkOrder);
+        String last = null;
+        for (String path : paths) {
+            // a directory being indexed right now can be found both ways
+            if (!walked || !path.equals(last)) {
+                action.accept(path);
+            }
+            last = path;
+        }
+    }
+
+    private List<User> candidates(NamePattern pattern) {
+        List<User> candidates = new ArrayList<>();
+        if (pattern.isExact()) {
+            addUsers(users.get(pattern.text()), candidates);
+            return candidates;
+        }
+        String prefix = pattern.prefix();
+        Set<String> range = prefix.isEmpty() ? names : names.subSet(prefix, true, prefix + Character.MAX_VALUE, true);
+        for (String name : range) {
+            if (pattern.matches(name)) {
+                addUsers(users.get(name), candidates);
+            }
+        }
+        return candidates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addUsers(Object found, List<User> candidates) {
+        if (found instanceof User) {
+            candidates.add((User) found);
+        } else if (found != null) {
+            candidates.addAll((Collection<User>) found);
+        }
+    }
+
+    private static Set<User> newSet(User first) {
+        Set<User> set = ConcurrentHashMap.newKeySet();
+        set.add(first);
+        return set;
+    }
+
+    // true if user is somewhere below directory and neither of them was removed on the way
+    private static boolean isBelow(User user, User directory) {
+        if (user == directory) {
+            return false;
+        }
+        for (User node = user; node != directory; node = node.getParent()) {
+            if (node == null || node.isDetached()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * the order a walk visits paths in: children in alphabetical order, each followed by
+     * everything below it. that is the order of the paths with '/' sorting before every character
+     */
+    private static int compareWalkOrder(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return x == '/' ? -1 : y == '/' ? 1 : x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * NamePattern.java matches the names of files and directories for find.
+ */
+
+import java.util.regex.Pattern;
+
+/*
+ * a name without *, ? or [ only matches itself. otherwise it is a glob like in a shell:
+ * * stands for any characters, ? for one character and [abc], [a-z] or [!abc] for one
+ * character out of a set. the part in front of the first wildcard is kept, so a sorted
+ * index of names only has to look at the names starting with it
+ */
+final class NamePattern {
+    private final String text;
+    private final String prefix;
+    private final Pattern glob; // null when the pattern is an exact name
+
+    private NamePattern(String text, String prefix, Pattern glob) {
+        this.text = text;
+        this.prefix = prefix;
+        this.glob = glob;
+    }
+
+    static NamePattern of(String pattern) {
+        int wildcard = firstWildcard(pattern);
+        if (wildcard < 0) {
+            return new NamePattern(pattern, pattern, null);
+        }
+        return new NamePattern(pattern, pattern.substring(0, wildcard), Pattern.compile(toRegex(pattern)));
+    }
+
+    boolean isExact() {
+        return glob == null;
+    }
+
+    // the exact name, or the glob as it was written
+    String text() {
+        return text;
+    }
+
+    // every matching name starts with this
+    String prefix() {
+        return prefix;
+    }
+
+    boolean matches(String name) {
+        if (glob == null) {
+            return name.equals(text);
+        }
+        return name.startsWith(prefix) && glob.matcher(name).matches();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || (c == '[' && pattern.indexOf(']', i + 1) > i + 1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[' && pattern.indexOf(']', i + 1) > i + 1) {
+                // a set runs to the next ']', "[!" is "[^" in a regex
+                int end = pattern.indexOf(']', i + 1);
+                String set = pattern.substring(i + 1, end);
+                if (set.equals("!")) {
+                    regex.append(Pattern.quote("[!]"));
+                    i = end;
+                    continue;
+                }
+                regex.append('[');
+                if (set.startsWith("!")) {
+                    regex.append('^');
+                    set = set.substring(1);
+                }
+                for (int j = 0; j < set.length(); j++) {
+                    char s = set.charAt(j);
+                    if (s == '\\' || s == '[' || s == ']' || s == '^' || s == '&') {
+                        regex.append('\\');
+                    }
+                    regex.append(s);
+                }
+                regex.append(']');
+                i = end;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * OffHeapContent.java keeps file bytes outside of the Java heap in direct ByteBuffers.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * OffHeapContent is used for large files, so that multi-GB trees do not fill the heap
+ * and the garbage collector never has to scan or move the file bytes.
+ * the memory is given back when the buffers are no longer referenced.
+ * every chunk but the last one holds chunkSize bytes, so the chunk holding a position is
+ * found by dividing it by chunkSize.
+ */
+final class OffHeapContent implements FileContent {
+    private final ByteBuffer[] chunks;
+    private final long chunkSize;
+    private final long size;
+
+    OffHeapContent(ByteBuffer[] chunks, long chunkSize, long size) {
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // copying through a small heap buffer, since OutputStream only takes byte[]
+        byte[] transfer = new byte[(int) Math.min(ContentWriter.CHUNK_SIZE, Math.max(size, 1))];
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate(); // own position, so concurrent readers do not clash
+            while (view.hasRemaining()) {
+                int length = Math.min(transfer.length, view.remaining());
+                view.get(transfer, 0, length);
+                out.write(transfer, 0, length);
+            }
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+        if (position < 0) {
+            return 0;
+        }
+        int copied = 0;
+        for (int index = (int) (position / chunkSize); index < chunks.length && copied < length; index++) {
+            ByteBuffer chunk = chunks[index];
+            long chunkStart = index * chunkSize;
+            long chunkEnd = chunkStart + chunk.limit();
+            if (position >= chunkEnd) {
+                break;
+            }
+            int count = (int) Math.min(length - copied, chunkEnd - position);
+            chunk.get((int) (position - chunkStart), buffer, offset + copied, count); // absolute, so concurrent readers do not clash
+            copied += count;
+            position += count;
+        }
+        return copied;
+    }
+}
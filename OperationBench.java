@@ -0,0 +1,343 @@
+/*
+ * OperationBench.java measures the cost of each command, parameterized by fan-out, depth and file size.
+ * run with: java OperationBench [--json results.json] [--only name,...] [--fanOut 10,1000]
+ *           [--depth 4,64] [--fileSize 1024,1048576] [--warmup 3] [--iterations 5] [--millis 200]
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * every benchmark runs commands through a Session, like a script would, with the output
+ * thrown away. a benchmark is run once for every combination of the parameters it uses.
+ * each iteration first builds its tree (not timed), then runs the command over and over
+ * for the iteration time and records the average nanoseconds per command. the warmup
+ * iterations let the JIT settle and are not recorded.
+ * commands that add to a directory stop after MAX_INSERTS per iteration, so the
+ * directory stays close to the size it is measured at.
+ * the results are printed as a table and can be written as JSON, one entry per
+ * benchmark and parameter combination with the score, its error and the raw iterations,
+ * so runs before and after a change can be compared.
+ */
+public class OperationBench {
+    private static final int MAX_INSERTS = 1_000;
+    private static final long MAX_TREE_NODES = 2_000_000; // larger fanOut^depth combinations are skipped
+    private static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    private static int warmupIterations = 3;
+    private static int measuredIterations = 5;
+    private static long iterationNanos = 200_000_000L;
+
+    // builds the tree for one iteration and returns the command to time
+    private interface Benchmark {
+        Operation prepare(Map<String, Integer> params) throws IOException;
+    }
+
+    // one timed command, invocation counts up from 0 within an iteration
+    private interface Operation {
+        void run(int invocation);
+    }
+
+    private static final class Result {
+        final String benchmark;
+        final Map<String, Integer> params;
+        final double[] nanosPerOperation;
+
+        Result(String benchmark, Map<String, Integer> params, double[] nanosPerOperation) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.nanosPerOperation = nanosPerOperation;
+        }
+
+        double mean() {
+            return Arrays.stream(nanosPerOperation).average().orElse(0);
+        }
+
+        // the standard deviation of the iterations
+        double error() {
+            double mean = mean();
+            double sum = 0;
+            for (double value : nanosPerOperation) {
+                sum += (value - mean) * (value - mean);
+            }
+            return nanosPerOperation.length > 1 ? Math.sqrt(sum / (nanosPerOperation.length - 1)) : 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, int[]> values = new LinkedHashMap<>();
+        values.put("fanOut", new int[] {10, 1_000, 100_000});
+        values.put("depth", new int[] {2, 4, 64, 1_024});
+        values.put("fileSize", new int[] {1_024, 1 << 20, 16 << 20});
+        String json = null;
+        List<String> only = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            switch (option) {
+                case "--json":
+                    json = value;
+                    break;
+                case "--only":
+                    only = Arrays.asList(value.split(","));
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    measuredIterations = Integer.parseInt(value);
+                    break;
+                case "--millis":
+                    iterationNanos = Long.parseLong(value) * 1_000_000L;
+                    break;
+                default:
+                    String param = option.startsWith("--") ? option.substring(2) : option;
+                    if (!values.containsKey(param)) {
+                        System.out.println("ERROR: Unknown option " + option);
+                        return;
+                    }
+                    values.put(param, Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray());
+            }
+        }
+
+        Map<String, String[]> uses = new LinkedHashMap<>();
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        define(benchmarks, uses, "mkdir", new String[] {"fanOut"}, OperationBench::mkdir);
+        define(benchmarks, uses, "create", new String[] {"fanOut", "fileSize"}, OperationBench::create);
+        define(benchmarks, uses, "cd", new String[] {"depth"}, OperationBench::cd);
+        define(benchmarks, uses, "ls", new String[] {"fanOut"}, OperationBench::ls);
+        define(benchmarks, uses, "du", new String[] {"fanOut", "depth"}, params -> du(params, "du"));
+        define(benchmarks, uses, "du-recount", new String[] {"fanOut", "depth"}, params -> du(params, "du --recount"));
+        define(benchmarks, uses, "find", new String[] {"fanOut", "depth"}, OperationBench::find);
+        define(benchmarks, uses, "cat", new String[] {"fileSize"}, OperationBench::cat);
+
+        System.out.printf("%-12s %-36s %16s %14s%n", "benchmark", "params", "ns/op", "error");
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Benchmark> entry : benchmarks.entrySet()) {
+            String name = entry.getKey();
+            if (only != null && !only.contains(name)) {
+                continue;
+            }
+            for (Map<String, Integer> params : combinations(uses.get(name), values)) {
+                if (tooLarge(name, params)) {
+                    continue;
+                }
+                Result result = measure(name, params, entry.getValue());
+                results.add(result);
+                System.out.printf("%-12s %-36s %16.1f %14.1f%n", name, params, result.mean(), result.error());
+            }
+        }
+        if (json != null) {
+            writeJson(results, json);
+            System.out.println("Results written to " + json);
+        }
+    }
+
+    private static void define(Map<String, Benchmark> benchmarks, Map<String, String[]> uses, String name,
+            String[] params, Benchmark benchmark) {
+        benchmarks.put(name, benchmark);
+        uses.put(name, params);
+    }
+
+    // every combination of the values of the given parameters
+    private static List<Map<String, Integer>> combinations(String[] params, Map<String, int[]> values) {
+        List<Map<String, Integer>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (String param : params) {
+            List<Map<String, Integer>> extended = new ArrayList<>();
+            for (Map<String, Integer> combination : combinations) {
+                for (int value : values.get(param)) {
+                    Map<String, Integer> next = new LinkedHashMap<>(combination);
+                    next.put(param, value);
+                    extended.add(next);
+                }
+            }
+            combinations = extended;
+        }
+        return combinations;
+    }
+
+    // the trees of du and find have fanOut^depth directories, only the ones that fit are run
+    private static boolean tooLarge(String name, Map<String, Integer> params) {
+        if (!params.containsKey("fanOut") || !params.containsKey("depth")) {
+            return false;
+        }
+        return Math.pow(params.get("fanOut"), params.get("depth")) > MAX_TREE_NODES;
+    }
+
+    private static Result measure(String name, Map<String, Integer> params, Benchmark benchmark) throws IOException {
+        double[] measured = new double[measuredIterations];
+        for (int i = 0; i < warmupIterations + measuredIterations; i++) {
+            double nanos = iteration(name, benchmark.prepare(params));
+            if (i >= warmupIterations) {
+                measured[i - warmupIterations] = nanos;
+            }
+        }
+        return new Result(name, params, measured);
+    }
+
+    // the average nanoseconds of one command over one iteration
+    private static double iteration(String name, Operation operation) {
+        boolean inserting = name.equals("mkdir") || name.equals("create");
+        int invocations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operation.run(invocations++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos && !(inserting && invocations >= MAX_INSERTS));
+        return (double) elapsed / invocations;
+    }
+
+    private static Session session(FileSystem fileSystem) {
+        return new Session(fileSystem, null, NULL_OUT, NULL_OUT, false);
+    }
+
+    // a directory holding fanOut directories
+    private static User wide(FileSystem fileSystem, int fanOut) throws IOException {
+        User root = fileSystem.getRoot();
+        User directory = fileSystem.mkdir(root, "wide");
+        for (int i = 0; i < fanOut; i++) {
+            fileSystem.mkdir(directory, "entry" + i);
+        }
+        return directory;
+    }
+
+    // adding a directory to a directory that holds fanOut entries
+    private static Operation mkdir(Map<String, Integer> params) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        wide(fileSystem, params.get("fanOut"));
+        Session session = session(fileSystem);
+        return invocation -> session.execute("mkdir /wide/new" + invocation);
+    }
+
+    // adding a file of fileSize bytes to a directory that holds fanOut entries
+    private static Operation create(Map<String, Integer> params) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        wide(fileSystem, params.get("fanOut"));
+        Session session = session(fileSystem);
+        char[] content = new char[params.get("fileSize")];
+        Arrays.fill(content, 'x');
+        String text = new String(content);
+        return invocation -> session.execute("create /wide/new" + invocation + " " + text);
+    }
+
+    // going to a directory depth levels below the root by its absolute path
+    private static Operation cd(Map<String, Integer> params) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        User directory = fileSystem.getRoot();
+        StringBuilder path = new StringBuilder();
+        for (int level = 0; level < params.get("depth"); level++) {
+            directory = fileSystem.mkdir(directory, "level" + level);
+            path.append("/level").append(level);
+        }
+        Session session = session(fileSystem);
+        String command = "cd " + path;
+        return invocation -> session.execute(command);
+    }
+
+    // listing a directory that holds fanOut entries, half of them files
+    private static Operation ls(Map<String, Integer> params) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        User root = fileSystem.getRoot();
+        FileContent content = FileContent.of("x");
+        for (int i = 0; i < params.get("fanOut"); i++) {
+            if (i % 2 == 0) {
+                fileSystem.mkdir(root, "entry" + i);
+            } else {
+                fileSystem.createFile(root, "entry" + i, content);
+            }
+        }
+        Session session = session(fileSystem);
+        return invocation -> session.execute("ls");
+    }
+
+    private static Operation du(Map<String, Integer> params, String command) throws IOException {
+        Session session = session(balanced(params.get("fanOut"), params.get("depth")));
+        return invocation -> session.execute(command);
+    }
+
+    private static Operation find(Map<String, Integer> params) throws IOException {
+        Session session = session(balanced(params.get("fanOut"), params.get("depth")));
+        return invocation -> session.execute("find target");
+    }
+
+    // reading a file of fileSize bytes
+    private static Operation cat(Map<String, Integer> params) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        ContentWriter writer = new ContentWriter();
+        byte[] block = new byte[64 * 1024];
+        Arrays.fill(block, (byte) 'x');
+        for (int left = params.get("fileSize"); left > 0; left -= block.length) {
+            writer.append(block, 0, Math.min(left, block.length));
+        }
+        fileSystem.createFile(fileSystem.getRoot(), "large", writer.toContent());
+        Session session = session(fileSystem);
+        return invocation -> session.execute("cat large");
+    }
+
+    // a tree of depth levels where every directory holds fanOut directories and one file named target
+    private static FileSystem balanced(int fanOut, int depth) throws IOException {
+        FileSystem fileSystem = new FileSystem();
+        FileContent content = FileContent.of("content");
+        List<User> level = new ArrayList<>();
+        level.add(fileSystem.getRoot());
+        for (int d = 0; d < depth; d++) {
+            List<User> next = new ArrayList<>();
+            for (User directory : level) {
+                fileSystem.createFile(directory, "target", content);
+                for (int i = 0; i < fanOut; i++) {
+                    next.add(fileSystem.mkdir(directory, "dir" + i));
+                }
+            }
+            level = next;
+        }
+        return fileSystem;
+    }
+
+    private static void writeJson(List<Result> results, String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.println("  {");
+                out.println("    \"benchmark\": \"" + result.benchmark + "\",");
+                out.println("    \"mode\": \"avgt\",");
+                out.println("    \"warmupIterations\": " + warmupIterations + ",");
+                out.println("    \"measurementIterations\": " + measuredIterations + ",");
+                StringBuilder params = new StringBuilder();
+                for (Map.Entry<String, Integer> param : result.params.entrySet()) {
+                    if (params.length() > 0) {
+                        params.append(", ");
+                    }
+                    params.append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+                }
+                out.println("    \"params\": {" + params + "},");
+                out.println("    \"primaryMetric\": {");
+                out.println("      \"score\": " + result.mean() + ",");
+                out.println("      \"scoreError\": " + result.error() + ",");
+                out.println("      \"scoreUnit\": \"ns/op\",");
+                StringBuilder raw = new StringBuilder();
+                for (double value : result.nanosPerOperation) {
+                    if (raw.length() > 0) {
+                        raw.append(", ");
+                    }
+                    raw.append(value);
+                }
+                out.println("      \"rawData\": [[" + raw + "]]");
+                out.println("    }");
+                out.println(r + 1 < results.size() ? "  }," : "  }");
+            }
+            out.println("]");
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * ParallelWalker.java runs find and du over a subtree on all cores with fork/join tasks.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * ParallelWalker splits the children of a directory into ranges and hands ranges
+ * to a ForkJoinPool as long as a range holds more than threshold Users.
+ * the number of Users under each child is known from User.getTotalCount, so ranges
+ * are split where half of the work is, and the lighter half is forked while the
+ * heavier half is walked by the current task.
+ * each task walks its part with an explicit stack instead of recursion, so deep
+ * chains of directories never grow the Java stack.
+ * find returns its matches in the same order as a sequential walk, because the
+ * matches of every forked half are put back where that half lies in the walk.
+ * like Finder, each task carries one path builder down its walk, so a match costs
+ * the length of its name and not a walk back up to the root.
+ * the tree must not change while a walk is running.
+ */
+final class ParallelWalker {
+    // subtrees with at most this many Users are walked by a single task
+    static final int DEFAULT_THRESHOLD = Integer.getInteger("filesys.parallelThreshold", 10_000);
+
+    private ParallelWalker() {
+    }
+
+    // full paths of all Users named targetName (or matching it, see NamePattern) below directory, in sorted walk order
+    static List<String> find(User directory, String targetName) {
+        return find(directory, targetName, DEFAULT_THRESHOLD);
+    }
+
+    static List<String> find(User directory, String targetName, int threshold) {
+        Range range = Range.of(directory, Finder.prefixOf(directory).length(), threshold);
+        return ForkJoinPool.commonPool().invoke(new FindTask(range, NamePattern.of(targetName), threshold));
+    }
+
+    // bytes of all files below directory, counted again from the file sizes
+    static long totalSize(User directory) {
+        return totalSize(directory, DEFAULT_THRESHOLD);
+    }
+
+    static long totalSize(User directory, int threshold) {
+        return ForkJoinPool.commonPool().invoke(new SizeTask(Range.of(directory, 0, threshold), threshold));
+    }
+
+    /*
+     * a range of the children of one directory. for directories with more than
+     * threshold Users below them it keeps prefix sums of the subtree counts,
+     * so the weight of any sub-range is known in O(1)
+     */
+    private static final class Range {
+        final User directory;
+        final int prefixLength; // length of Finder.prefixOf(directory)
+        final User[] children;
+        final long[] weights; // weights[i] = Users in children[0 .. i - 1], null if never split
+        final int from;
+        final int to;
+
+        private Range(Range range, int from, int to) {
+            this(range.directory, range.prefixLength, range.children, range.weights, from, to);
+        }
+
+        private Range(User directory, int prefixLength, User[] children, long[] weights, int from, int to) {
+            this.directory = directory;
+            this.prefixLength = prefixLength;
+            this.children = children;
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+        }
+
+        static Range of(User directory, int prefixLength, int threshold) {
+            User[] children = directory.getSubDirectories().toArray(new User[0]);
+            long[] weights = null;
+            if (directory.getTotalCount() > threshold) {
+                weights = new long[children.length + 1];
+                for (int i = 0; i < children.length; i++) {
+                    weights[i + 1] = weights[i] + children[i].getTotalCount();
+                }
+            }
+            return new Range(directory, prefixLength, children, weights, 0, children.length);
+        }
+
+        long weight() {
+            return weights == null ? 0 : weights[to] - weights[from];
+        }
+
+        boolean shouldSplit(int threshold) {
+            return to - from > 1 && weight() > threshold;
+        }
+
+        Range left() {
+            return new Range(this, from, middle());
+        }
+
+        Range right() {
+            return new Range(this, middle(), to);
+        }
+
+        // the children after index, still to be walked
+        Range after(int index) {
+            return new Range(this, index + 1, to);
+        }
+
+        // the first index where the weight before it reaches half of the range
+        private int middle() {
+            long half = weights[from] + weight() / 2;
+            int low = from + 1;
+            int high = to - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (weights[mid] < half) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class FindTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Range range;
+        private final NamePattern target;
+        private final int threshold;
+
+        FindTask(Range range, NamePattern target, int threshold) {
+            this.range = range;
+            this.target = target;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> matches = new ArrayList<>();
+            StringBuilder path = new StringBuilder(Finder.prefixOf(range.directory));
+            // forked left halves, whose matches go in front of everything found after forking them
+            List<FindTask> forkedBefore = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            // ranges still to walk, and forked right halves to be joined when they come up
+            Deque<Object> pending = new ArrayDeque<>();
+            pending.push(range);
+            while (!pending.isEmpty()) {
+                Object item = pending.pop();
+                if (item instanceof FindTask) {
+                    matches.addAll(((FindTask) item).join());
+                    continue;
+                }
+                Range current = (Range) item;
+                while (current.shouldSplit(threshold)) {
+                    Range left = current.left();
+                    Range right = current.right();
+                    if (left.weight() < right.weight()) {
+                        FindTask task = new FindTask(left, target, threshold);
+                        task.fork();
+                        forkedBefore.add(task);
+                        positions.add(matches.size());
+                        current = right;
+                    } else {
+                        FindTask task = new FindTask(right, target, threshold);
+                        task.fork();
+                        pending.push(task);
+                        current = left;
+                    }
+                }
+                for (int i = current.from; i < current.to; i++) {
+                    User child = current.children[i];
+                    path.setLength(current.prefixLength);
+                    path.append('/').append(child.getName());
+                    if (target.matches(child.getName())) {
+                        matches.add(path.toString());
+                    }
+                    if (child.isDirectory() && child.hasSubDirectories()) {
+                        // walking into the child now and coming back for the rest of the range later
+                        if (i < current.to - 1) {
+                            pending.push(current.after(i));
+                        }
+                        pending.push(Range.of(child, path.length(), threshold));
+                        break;
+                    }
+                }
+            }
+            if (forkedBefore.isEmpty()) {
+                return matches;
+            }
+            // joining the newest fork first, which is the one on top of this worker's queue
+            List<List<String>> forkedMatches = new ArrayList<>(Collections.nCopies(forkedBefore.size(), null));
+            for (int i = forkedBefore.size() - 1; i >= 0; i--) {
+                forkedMatches.set(i, forkedBefore.get(i).join());
+            }
+            List<String> ordered = new ArrayList<>();
+            int copied = 0;
+            for (int i = 0; i < forkedBefore.size(); i++) {
+                int position = positions.get(i);
+                ordered.addAll(matches.subList(copied, position));
+                ordered.addAll(forkedMatches.get(i));
+                copied = position;
+            }
+            ordered.addAll(matches.subList(copied, matches.size()));
+            return ordered;
+        }
+    }
+
+    private static final class SizeTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Range range;
+        private final int threshold;
+
+        SizeTask(Range range, int threshold) {
+            this.range = range;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Long compute() {
+            long totalSize = 0;
+            List<SizeTask> forked = new ArrayList<>();
+            Deque<Range> pending = new ArrayDeque<>();
+            pending.push(range);
+            while (!pending.isEmpty()) {
+                Range current = pending.pop();
+                while (current.shouldSplit(threshold)) {
+                    Range left = current.left();
+                    Range right = current.right();
+                    boolean leftIsLighter = left.weight() < right.weight();
+                    SizeTask task = new SizeTask(leftIsLighter ? left : right, threshold);
+                    task.fork();
+                    forked.add(task);
+                    current = leftIsLighter ? right : left;
+                }
+                for (int i = current.from; i < current.to; i++) {
+                    User child = current.children[i];
+                    if (child.isFile()) {
+                        totalSize += child.getSize();
+                    } else if (child.hasSubDirectories()) {
+                        pending.push(Range.of(child, 0, threshold));
+                    }
+                }
+            }
+            for (int i = forked.size() - 1; i >= 0; i--) {
+                totalSize += forked.get(i).join();
+            }
+            return totalSize;
+        }
+    }
+}
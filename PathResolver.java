@@ -0,0 +1,173 @@
+/*
+ * PathResolver.java turns path strings like "a/b/c", "../x" or "/a/b" into Users of the tree.
+ */
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.WeakHashMap;
+
+/*
+ * PathResolver walks a path one component at a time, starting from the root for absolute
+ * paths and from the current directory otherwise, and handles "." and "..".
+ * every command that takes a path goes through here, and the walk works on the path
+ * string directly instead of creating java.nio.file.Path objects.
+ * names of Users are interned, so a name used in many directories is stored once.
+ * the interned names are only held weakly, a name no User uses anymore is collected.
+ */
+final class PathResolver {
+    private static final int NAME_STRIPES = 32;
+    // each stripe guarded by itself, so creating Users in different sessions rarely waits
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final WeakHashMap<String, WeakReference<String>>[] NAMES = new WeakHashMap[NAME_STRIPES];
+
+    static {
+        for (int i = 0; i < NAME_STRIPES; i++) {
+            NAMES[i] = new WeakHashMap<>();
+        }
+    }
+
+    private PathResolver() {
+    }
+
+    // returning the shared copy of a name component
+    static String intern(String name) {
+        WeakHashMap<String, WeakReference<String>> names = NAMES[(name.hashCode() & 0x7fffffff) % NAME_STRIPES];
+        synchronized (names) {
+            WeakReference<String> existing = names.get(name);
+            String shared = existing != null ? existing.get() : null;
+            if (shared == null) {
+                shared = name;
+                names.put(name, new WeakReference<>(name));
+            }
+            return shared;
+        }
+    }
+
+    /*
+     * finding the User a path points to, or null if some component does not exist
+     * or a component before the last one is a file
+     */
+    static User resolve(User root, User currentDirectory, String path) {
+        return resolve(root, currentDirectory, path, User.LIVE);
+    }
+
+    // the same in the tree as it was at epoch, see Versions
+    static User resolve(User root, User currentDirectory, String path, long epoch) {
+        User node = path.startsWith("/") ? root : currentDirectory;
+        int start = 0;
+        int length = path.length();
+        while (start < length && node != null) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) { // skipping empty components from "//" or a trailing "/"
+                node = step(node, path, start, end, epoch);
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    // resolving a path in any tree, for example a CompactTree, which has no older epochs
+    static TreeNode resolveNode(TreeNode root, TreeNode currentDirectory, String path) {
+        TreeNode node = path.startsWith("/") ? root : currentDirectory;
+        int start = 0;
+        int length = path.length();
+        while (start < length && node != null) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                String name = path.substring(start, end);
+                if (name.equals("..")) {
+                    node = node.isRoot() ? node : node.getParent();
+                } else if (!name.equals(".")) {
+                    node = node.isDirectory() ? node.getChild(name) : null;
+                }
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /*
+     * finding the directory that would contain the last component of a path,
+     * for example "a/b" for "a/b/c", or null if it does not exist or is a file
+     */
+    static User resolveParent(User root, User currentDirectory, String path) {
+        String trimmed = trimTrailingSlashes(path);
+        int slash = trimmed.lastIndexOf('/');
+        User parent;
+        if (slash < 0) {
+            parent = currentDirectory;
+        } else if (slash == 0) {
+            parent = root;
+        } else {
+            parent = resolve(root, currentDirectory, trimmed.substring(0, slash));
+        }
+        return parent != null && parent.isDirectory() ? parent : null;
+    }
+
+    /*
+     * the last component of a path, "c" for "a/b/c/"
+     * returns null when there is none to create or remove, like for "/", "." or ".."
+     */
+    static String fileName(String path) {
+        String trimmed = trimTrailingSlashes(path);
+        String name = trimmed.substring(trimmed.lastIndexOf('/') + 1);
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return null;
+        }
+        return name;
+    }
+
+    // building the absolute path of a User, or a node of any other tree, "/" for the root
+    static String pathOf(TreeNode user) {
+        if (user.isRoot()) {
+            return "/";
+        }
+        Deque<String> names = new ArrayDeque<>();
+        int length = 0;
+        for (TreeNode node = user; !node.isRoot(); node = node.getParent()) {
+            names.push(node.getName());
+            length += node.getName().length() + 1;
+        }
+        StringBuilder path = new StringBuilder(length);
+        for (String name : names) {
+            path.append('/').append(name);
+        }
+        return path.toString();
+    }
+
+    // the absolute path of a child called name inside directory
+    static String childPath(User directory, String name) {
+        return directory.isRoot() ? "/" + name : pathOf(directory) + "/" + name;
+    }
+
+    // moving one component from node, the component being path[start, end)
+    private static User step(User node, String path, int start, int end, long epoch) {
+        int length = end - start;
+        if (length == 1 && path.charAt(start) == '.') {
+            return node;
+        }
+        if (length == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+            // the parent of the root is the root itself
+            return node.isRoot() ? node : node.getParent();
+        }
+        if (!node.isDirectory()) {
+            return null;
+        }
+        return node.getChild(path.substring(start, end), epoch);
+    }
+
+    private static String trimTrailingSlashes(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(0, end);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Server.java serves the FileSys commands over TCP, one session per connection.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * every connection gets its own Session, so its own current directory, and all of them
+ * share one FileSystem. the protocol is the terminal one: the client sends command lines
+ * (and the content lines after create), the server answers with the output of the
+ * command followed by "prompt> ", which marks the end of the answer. what the watches of a
+ * connection saw is printed at the end of an answer, before the prompt, so it never breaks
+ * one up. a client that only waits for changes can send empty lines.
+ *
+ * each connection is served by a thread of its own. on a JVM with virtual threads these
+ * are virtual threads, so thousands of mostly idle connections cost little. on older JVMs
+ * they are platform threads with a small stack
+ */
+final class Server implements Closeable {
+    static final String PROMPT = "prompt> ";
+
+    private static final int BACKLOG = 4096;
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private final FileSystem fileSystem;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions;
+
+    Server(FileSystem fileSystem, int port) throws IOException {
+        this.fileSystem = fileSystem;
+        this.serverSocket = new ServerSocket(port, BACKLOG);
+        this.sessions = newThreadPerTaskExecutor("session");
+    }
+
+    // the port the server listens on, useful when it was started on port 0
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // accepting connections until the server is closed
+    void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            socket.setTcpNoDelay(true); // answers are small and the client waits for each one
+            sessions.execute(() -> run(socket));
+        }
+    }
+
+    private void run(Socket socket) {
+        try (socket;
+                BufferedReader input = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false,
+                        StandardCharsets.UTF_8)) {
+            Session session = new Session(fileSystem, input, out, out, true);
+            session.holdEvents();
+            String line;
+            do {
+                session.printHeldEvents();
+                out.print(PROMPT);
+                out.flush();
+                line = input.readLine();
+            } while (line != null && session.execute(line));
+            session.close();
+            out.flush();
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdownNow();
+    }
+
+    /*
+     * an executor starting a new thread for every task, virtual threads when the JVM
+     * has them (Java 21 and later), otherwise daemon platform threads with a small stack
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(null, runnable, name + "-" + count.incrementAndGet(),
+                        PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
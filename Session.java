@@ -0,0 +1,1172 @@
+/*
+ * Session.java runs the commands of one user of the file system.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/*
+ * a Session keeps the current directory of one user and prints to that user's output,
+ * the tree itself is the FileSystem shared by all sessions.
+ * when the tree is replaced by a load the session goes back to the new root
+ */
+class Session {
+    private final FileSystem fileSystem;
+    private final BufferedReader input; // the lines of file content for create are read from here
+    private final PrintStream out;
+    private final PrintStream err;
+    private final boolean interactive; // false when running a script, no prompts are printed then
+    private User currentDirectory;
+    private long generation;
+    private boolean failed; // set when the command being run printed an error
+    private final List<Watches.Watch> watching = new ArrayList<>(); // the watches printing to out
+    private boolean holdingEvents; // the watches are polled by printHeldEvents instead of printing at once
+
+    Session(FileSystem fileSystem, BufferedReader input, PrintStream out, PrintStream err, boolean interactive) {
+        this.fileSystem = fileSystem;
+        this.input = input;
+        this.out = out;
+        this.err = err;
+        this.interactive = interactive;
+        this.currentDirectory = fileSystem.getRoot();
+        this.generation = fileSystem.getGeneration();
+    }
+
+    /*
+     * printing what the watches of this session still hold and stopping them, called when
+     * the session ends
+     */
+    void close() {
+        for (Watches.Watch watch : watching) {
+            watch.drain();
+            fileSystem.unwatch(watch);
+        }
+        watching.clear();
+    }
+
+    /*
+     * keeping what the watches of this session see until printHeldEvents, for a server:
+     * a batch printed by another thread could land in the middle of an answer
+     */
+    void holdEvents() {
+        holdingEvents = true;
+    }
+
+    // printing what the watches saw since the last call, one batch each
+    void printHeldEvents() {
+        for (Watches.Watch watch : watching) {
+            watch.drain();
+        }
+        forgetFinishedWatches();
+    }
+
+    // the watches whose directory went, once everything they held was printed
+    private void forgetFinishedWatches() {
+        watching.removeIf(Watches.Watch::isFinished);
+    }
+
+    User getCurrentDirectory() {
+        checkGeneration();
+        return currentDirectory;
+    }
+
+    /*
+     * running one command line, returns false once the command was exit
+     * its time, the bytes it allocated and whether it failed are recorded in the Metrics
+     */
+    boolean execute(String userInput) {
+        checkGeneration();
+        Metrics metrics = fileSystem.getMetrics();
+        long allocatedBefore = Metrics.allocatedBytes();
+        long start = System.nanoTime();
+        failed = false;
+        // the command, its argument and for create the content given on the same line
+        String[] splitting = userInput.split(" ", 3);
+        boolean running = true;
+        try {
+            running = run(splitting);
+        } catch (RuntimeException e) {
+            // one broken file or command must not end the session, or a whole server connection
+            error("Command failed: " + e);
+        }
+        metrics.record(Metrics.indexOf(splitting[0]), System.nanoTime() - start,
+                Metrics.allocatedBytes() - allocatedBefore, failed);
+        return running;
+    }
+
+    private boolean run(String[] splitting) {
+        // take the first argument and ignore others
+        switch (splitting[0]) {
+            /*
+             * handles cases for all commands:
+             * create, cat, append, head, tail, rm, mkdir, rmdir, cd, ls, du, pwd, find, grep, cp, mount,
+             * snapshot, view, watch, unwatch, save, load, compact, flush, stats, and exit
+             */
+
+            case "create":
+                if (splitting.length > 1) {
+                    String newFileName = splitting[1];
+                    if (fileOrDirectoryExists(newFileName)) {
+                        error("File or directory with the same name already exists.");
+                    } else if (createFile(newFileName, splitting.length > 2 ? splitting[2] : null)) {
+                        out.println("File created: " + newFileName);
+                    }
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            // "cat <file> <offset> <length>" only prints that part of the file
+            case "cat":
+                if (splitting.length > 2) {
+                    readRange(splitting[1], splitting[2]);
+                } else if (splitting.length > 1) {
+                    String catFileName = splitting[1];
+                    if (!readFileContents(catFileName)) {
+                        error("Cannot read file " + catFileName);
+                    }
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            // "append <file> [content]" adds to the end of a file, the content is read like for create
+            case "append":
+                if (splitting.length > 1) {
+                    appendFile(splitting[1], splitting.length > 2 ? splitting[2] : null);
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            // "head <file> [lines]" and "tail <file> [lines]" print the first or last lines, 10 by default
+            case "head":
+            case "tail":
+                if (splitting.length > 1) {
+                    printLines(splitting[0].equals("head"), splitting[1], splitting.length > 2 ? splitting[2] : "10");
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            // "rm -r <path>" removes a directory with everything below it
+            case "rm":
+                if (splitting.length > 2 && splitting[1].equals("-r")) {
+                    if (removeTree(splitting[2])) {
+                        out.println("Removed: " + splitting[2]);
+                    }
+                } else if (splitting.length > 1) {
+                    String rmFileName = splitting[1];
+                    boolean fileRemoved = removeFile(rmFileName);
+                    if (fileRemoved) {
+                        out.println("File removed: " + rmFileName);
+                    } else {
+                        error("Cannot remove file " + rmFileName);
+                    }
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "mkdir":
+                if (splitting.length > 1) {
+                    User newDirectory = mkdir(splitting[1]);
+                    if (newDirectory != null) {
+                        out.println("Directory created: " + newDirectory.getName());
+                    }
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "rmdir":
+                if (splitting.length > 1) {
+                    if (rmdir(splitting[1])) {
+                        out.println("Directory removed: " + splitting[1]);
+                    } else {
+                        error("Cannot remove directory " + splitting[1]);
+                    }
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "cd":
+                if (splitting.length > 1) {
+                    cd(splitting[1]);
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "ls":
+                ls();
+                break;
+
+            case "du":
+                if (splitting.length > 1 && splitting[1].equals("--recount")) {
+                    // walking the subtree again instead of using the kept total
+                    out.println(fileSystem.du(currentDirectory, true));
+                } else if (splitting.length > 1 && splitting[1].equals("--physical")) {
+                    // the bytes of shared contents only counted once
+                    out.println("logical " + fileSystem.du(currentDirectory, false) + " bytes, physical "
+                            + fileSystem.physicalSize(currentDirectory) + " bytes");
+                } else {
+                    du();
+                }
+                break;
+
+            case "pwd":
+                pwd();
+                break;
+
+            case "find":
+                if (splitting.length < 2) {
+                    error("Please provide a target name for the find command.");
+                } else {
+                    find(unquote(splitting[1]));
+                }
+                break;
+
+            // "grep [-l] [-n] [-F] [-m <count>] <pattern> [path]" searches the contents of files
+            case "grep":
+                grep(splitting.length > 2 ? splitting[1] + " " + splitting[2] : splitting.length > 1 ? splitting[1] : "");
+                break;
+
+            // "cp [-r] <source> <target>", the source can be <snapshot>:<path>
+            case "cp":
+                copy(arguments(splitting));
+                break;
+
+            // "mount <hostdir> <name>" shows a directory of the host at name, read only when needed
+            case "mount":
+                if (splitting.length > 2) {
+                    mount(splitting[1], splitting[2]);
+                } else {
+                    error("Usage: mount <hostdir> <name>");
+                }
+                break;
+
+            // "snapshot create|delete|list", and ls, cat, du and find in a snapshot
+            case "snapshot":
+                snapshot(arguments(splitting));
+                break;
+
+            // "view open|close|list", and ls, cat, du and find in a read-only compact tree
+            case "view":
+                view(arguments(splitting));
+                break;
+
+            // "watch [-r] [path]" prints the changes in a directory as they happen, "watch" lists them
+            case "watch":
+                watch(arguments(splitting));
+                break;
+
+            case "unwatch":
+                unwatch(splitting.length > 1 ? splitting[1] : ".");
+                break;
+
+            case "save":
+                if (splitting.length > 1) {
+                    save(splitting[1]);
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "load":
+                if (splitting.length > 1) {
+                    load(splitting[1]);
+                } else {
+                    error("Invalid command");
+                }
+                break;
+
+            case "compact":
+                compact();
+                break;
+
+            // "stats" prints the metrics, "stats --prometheus <file>" writes them for a Prometheus collector
+            case "stats":
+                if (splitting.length > 2 && splitting[1].equals("--prometheus")) {
+                    writePrometheus(splitting[2]);
+                } else {
+                    fileSystem.getMetrics().print(out, fileSystem.getRoot());
+                    BlobStore blobs = fileSystem.getBlobs();
+                    if (blobs != null) {
+                        out.println("dedup: " + blobs.getBlobCount() + " distinct contents, "
+                                + blobs.getUniqueBytes() + " bytes");
+                    }
+                    NameIndex index = fileSystem.getIndex();
+                    if (index != null) {
+                        out.println("index: " + index.getNameCount() + " names, "
+                                + index.getUnindexedCount() + " copies and mounts not indexed yet");
+                    }
+                    ContentCache cache = fileSystem.getCache();
+                    if (cache != null) {
+                        out.println("cache: " + cache.getPolicy() + ", " + cache.getResidentBytes() + " of "
+                                + cache.getMaxBytes() + " bytes in memory"
+                                + (cache.getMaxAgeMillis() > 0 ? " for at most " + cache.getMaxAgeMillis() + " ms" : "")
+                                + ", " + cache.getSpilledBytes()
+                                + " bytes spilled, " + cache.getHits() + " hits, " + cache.getMisses()
+                                + " misses, " + cache.getEvictions() + " evictions");
+                    }
+                    long reclaiming = fileSystem.getPendingReclaims();
+                    if (reclaiming > 0) {
+                        out.println("reclaiming: " + reclaiming + " removed directories");
+                    }
+                }
+                break;
+
+            // an empty line does nothing, a server client waiting for watch events sends them
+            case "":
+                break;
+
+            // write out what a script printed so far
+            case "flush":
+                out.flush();
+                break;
+
+            // exit the session
+            case "exit":
+                out.println("Exiting the FileSys program.");
+                return false;
+
+            default:
+                failed = true;
+                err.println("ERROR : Incorrect command or file/directory name not entered or other error");
+        }
+        return true;
+    }
+
+    // going back to the root when another session loaded a new tree
+    private void checkGeneration() {
+        long current = fileSystem.getGeneration();
+        if (current != generation) {
+            generation = current;
+            currentDirectory = fileSystem.getRoot();
+        }
+    }
+
+    // all the words after the command, for commands that take more than one argument
+    private static String[] arguments(String[] splitting) {
+        if (splitting.length == 1) {
+            return new String[0];
+        }
+        String rest = splitting.length > 2 ? splitting[1] + " " + splitting[2] : splitting[1];
+        return rest.trim().split(" +");
+    }
+
+    // printing an error, the command is counted as failed
+    private void error(String message) {
+        failed = true;
+        out.println("ERROR: " + message);
+    }
+
+    // printing why a command failed, a journal that cannot be written is reported as such
+    private void printError(IOException e) {
+        if (e instanceof FileSystemException) {
+            error("" + e.getMessage());
+        } else {
+            error("Cannot write journal: " + e.getMessage());
+        }
+    }
+
+    /*
+     * finding the User a path points to, relative to the current directory
+     * or to the root if the path starts with "/"
+     */
+    private User resolve(String path) {
+        return fileSystem.resolve(currentDirectory, path);
+    }
+
+    /*
+     * checking whether a file or directory with
+     * a given path exists by resolving it and return true if a match is found
+     */
+
+    private boolean fileOrDirectoryExists(String path) {
+        return resolve(path) != null;
+    }
+
+    /*
+     * if the command is create, verify if the valid argument exists
+     * create a new file if no file or directory with the same name exists
+     * prints an error otherwise
+     * the content can follow the path on the same line ("create a/f hello\nworld",
+     * with \n for a new line, \t for a tab and \\ for a backslash), scripts use that instead of the
+     * lines ending with "~"
+     */
+
+    private boolean createFile(String path, String inlineContent) {
+        if (PathResolver.resolveParent(fileSystem.getRoot(), currentDirectory, path) == null
+                || PathResolver.fileName(path) == null) {
+            error("Invalid path specified.");
+            return false;
+        }
+
+        ContentWriter contentBuilder = new ContentWriter();
+        if (inlineContent != null) {
+            contentBuilder.append(unescape(inlineContent));
+        } else {
+            readContent(contentBuilder);
+        }
+
+        // contentBuilder is not empty before creating a file
+        if (contentBuilder.size() == 0) {
+            error("File not created. No content provided.");
+            return false;
+        }
+
+        try {
+            fileSystem.createFile(currentDirectory, path, contentBuilder.toContent());
+            return true;
+        } catch (IOException e) {
+            printError(e);
+            return false;
+        }
+    }
+
+    /*
+     * if the command is append,
+     * add content to the end of an existing file, given on the same line or
+     * typed in up to "~" like for create
+     */
+    private void appendFile(String path, String inlineContent) {
+        ContentWriter contentBuilder = new ContentWriter();
+        if (inlineContent != null) {
+            contentBuilder.append(unescape(inlineContent));
+        } else {
+            readContent(contentBuilder);
+        }
+        try {
+            User file = fileSystem.append(currentDirectory, path, contentBuilder.toContent());
+            out.println("Appended to " + path + ": " + contentBuilder.size() + " bytes, " + file.getSize() + " in total");
+        } catch (IOException e) {
+            printError(e);
+        }
+    }
+
+    // read characters from the input until a tilde (~) is entered
+    private void readContent(ContentWriter contentBuilder) {
+        if (interactive) {
+            out.println("Enter the content of the file. Type '~' to finish.");
+            out.flush();
+        }
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.contains("~")) {
+                    line = line.substring(0, line.indexOf("~"));
+                    if (!line.isEmpty()) {
+                        contentBuilder.append(line);
+                    }
+                    return;
+                }
+                contentBuilder.append(line).append("\n");
+            }
+        } catch (IOException e) {
+            // the input ended, keep what was read
+        }
+    }
+
+    // 'log*' or "log*" is log*, so a glob can be written like in a shell
+    private static String unquote(String argument) {
+        if (argument.length() >= 2 && (argument.charAt(0) == '\'' || argument.charAt(0) == '"')
+                && argument.charAt(argument.length() - 1) == argument.charAt(0)) {
+            return argument.substring(1, argument.length() - 1);
+        }
+        return argument;
+    }
+
+    // turning \n into a new line, \t into a tab and \\ into a backslash
+    private static String unescape(String content) {
+        if (content.indexOf('\\') < 0) {
+            return content;
+        }
+        StringBuilder unescaped = new StringBuilder(content.length());
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '\\' && i + 1 < content.length()) {
+                char next = content.charAt(++i);
+                unescaped.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /*
+     * if the command is cat, verify if the valid argument exists
+     * read the contents of the specified file
+     * and print the file contents if successful
+     * or error message if unable to read the file
+     * the content is streamed to the output chunk by chunk instead of building one big string
+     */
+    private boolean readFileContents(String fileName) {
+        User file = resolve(fileName);
+
+        // if a file with the matching path is found, print the file's content and return true
+        if (file != null && file.isFile()) {
+            out.println("File content of " + fileName);
+            try {
+                file.getContent().writeTo(out);
+            } catch (IOException | UncheckedIOException e) {
+                // a mounted file can be gone on the host by now
+                return false;
+            }
+            out.println();
+            return true;
+        }
+        // else if file not found
+        return false;
+    }
+    /*
+     * if the command is cat with an offset and a length,
+     * print only those bytes of the file, reading only the chunks that hold them
+     */
+    private void readRange(String fileName, String range) {
+        User file = resolve(fileName);
+        String[] bounds = range.trim().split(" +");
+        if (file == null || !file.isFile() || bounds.length != 2) {
+            error("Cannot read file " + fileName);
+            return;
+        }
+        try {
+            long offset = Long.parseLong(bounds[0]);
+            long length = Long.parseLong(bounds[1]);
+            if (offset < 0 || length < 0) {
+                error("Offset and length cannot be negative");
+                return;
+            }
+            FileContent content = file.getContent().reader();
+            long end = offset + Math.max(0, Math.min(length, content.size() - offset));
+            out.println("File content of " + fileName + " (" + offset + ".." + end + ")");
+            printRange(content, offset, length);
+        } catch (NumberFormatException e) {
+            error("Usage: cat <file> <offset> <length>");
+        } catch (IOException | UncheckedIOException e) {
+            error("Cannot read file " + fileName + ": " + causeOf(e));
+        }
+    }
+
+    /*
+     * if the command is head or tail,
+     * print the first or the last lines of a file. head reads from the start until it has
+     * seen enough new lines, tail reads backwards from the end, neither reads the rest
+     */
+    private void printLines(boolean head, String fileName, String count) {
+        User file = resolve(fileName);
+        if (file == null || !file.isFile()) {
+            error("Cannot read file " + fileName);
+            return;
+        }
+        try {
+            int lines = Integer.parseInt(count.trim());
+            FileContent content = file.getContent().reader();
+            if (head) {
+                printRange(content, 0, content.endOfLines(lines));
+            } else {
+                long start = content.startOfLastLines(lines);
+                printRange(content, start, content.size() - start);
+            }
+        } catch (NumberFormatException e) {
+            error("Usage: " + (head ? "head" : "tail") + " <file> [lines]");
+        } catch (IOException | UncheckedIOException e) {
+            error("Cannot read file " + fileName + ": " + causeOf(e));
+        }
+    }
+
+    // what went wrong reading a file, the IOException inside an UncheckedIOException
+    private static String causeOf(Exception e) {
+        Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+        return cause.getClass().getSimpleName() + " " + cause.getMessage();
+    }
+
+    // writing part of a content, and a new line unless it already ends with one
+    private void printRange(FileContent content, long offset, long length) throws IOException {
+        long end = offset + Math.max(0, Math.min(length, content.size() - offset));
+        content.writeTo(out, offset, length);
+        byte[] last = new byte[1];
+        if (end <= offset || content.read(end - 1, last, 0, 1) != 1 || last[0] != '\n') {
+            out.println();
+        }
+    }
+
+    /*
+     * if the command is rm, verify if the valid argument exists
+     * remove the specific file
+     * print the success message if file is removed
+     * or error message if unable to remove the file
+     */
+
+    private boolean removeFile(String fileName) {
+        try {
+            fileSystem.removeFile(currentDirectory, fileName);
+            return true;
+        } catch (IOException e) {
+            printError(e);
+            return false;
+        }
+    }
+
+    /*
+     * if the command is rm -r,
+     * remove a file or a directory with everything below it
+     */
+    private boolean removeTree(String path) {
+        try {
+            fileSystem.removeTree(currentDirectory, path);
+            return true;
+        } catch (IOException e) {
+            printError(e);
+            return false;
+        }
+    }
+
+    /*
+     * if the command is mkdir,
+     * create a new directory at the given path, its parent directory has to exist
+     * print the success message if created directory
+     */
+    private User mkdir(String path) {
+        try {
+            return fileSystem.mkdir(currentDirectory, path);
+        } catch (IOException e) {
+            printError(e);
+            return null;
+        }
+    }
+
+    /*
+     * if the command is rmdir, verify if the valid argument exists
+     * remove the specific directory
+     * print the success message if directory is removed
+     * or error message if unable to remove the directory or no argument provided
+     */
+
+    private boolean rmdir(String dirName) {
+        try {
+            fileSystem.rmdir(currentDirectory, dirName);
+            out.println("Deleted the directory");
+            return true; // if directory is successfully removed return true
+        } catch (IOException e) {
+            printError(e);
+            return false;
+        }
+    }
+
+    /*
+     * if the command is cd,
+     * change the current directory to one specified in the command line
+     * if valid argument, then change or else invalid error message
+     */
+
+    private void cd(String dirName) {
+        /*
+         * if dirName is "/",
+         * changing current directory to be the root directory of the file system
+         */
+        if (dirName.equals("/")) {
+            currentDirectory = fileSystem.getRoot();
+            out.println("Current directory set to root: " + currentDirectory.getName());
+            return;
+        }
+        /*
+         * if dirName is "..",
+         * change the current directory to be the parent of the current directory of the
+         * file system
+         */
+
+        if (dirName.equals("..")) {
+            User parentDirectory = currentDirectory.getParent();
+            if (parentDirectory != null) {
+                currentDirectory = parentDirectory;
+                out.println("Current directory set to parent: " + currentDirectory.getName());
+            } else {
+                error("Already at the root directory.");
+            }
+            return;
+        }
+
+        // resolving any other path one component at a time,
+        // from the root if it starts with "/" or else from the current directory
+        // if the specified directory is found, set the current directory to it
+        User foundDirectory = resolve(dirName);
+        if (foundDirectory != null && foundDirectory.isDirectory()) {
+            currentDirectory = foundDirectory;
+            out.println("Current directory set: " + currentDirectory.getName());
+        } else {
+            // if the specified directory is not found or not a directory, print an error
+            // message
+            error("Directory not found or not a directory");
+        }
+    }
+    /*
+     * if the command is ls,
+     * print all the files and directories inside the current directory,
+     * in alphabetical order and "*" after all directories
+     */
+
+    private void ls() {
+        printListing(fileSystem.ls(currentDirectory));
+    }
+
+    // the same listing for the live tree, a snapshot and a view
+    private void printListing(Collection<? extends TreeNode> fileList) {
+        if (fileList.isEmpty()) {
+            out.println("Empty directory");
+            return;
+        }
+
+        // the subdirectories are already kept in alphabetical order,
+        // so printing directories with "(*)" after each and then printing files
+        // only takes two passes and no sorting
+        for (TreeNode directory : fileList) {
+            if (directory.isDirectory()) {
+                out.println(directory.getName() + " (*)");
+            }
+        }
+        for (TreeNode file : fileList) {
+            if (file.isFile()) {
+                out.println(file.getName());
+            }
+        }
+    }
+
+    /*
+     * if command is du,
+     * finding and printing the total size (in bytes) of all the
+     * files in this directory and all the files in all subdirectories
+     * the total is kept up to date by User, so no walk over the subtree is needed
+     */
+    private void du() {
+        out.println(fileSystem.du(currentDirectory, false));
+    }
+
+    /*
+     * if command is pwd,
+     * print the full directory path to the current directory,
+     * starting from root
+     */
+    private void pwd() {
+        out.println("Current directory path: " + PathResolver.pathOf(currentDirectory));
+    }
+
+    /*
+     * if command is find,
+     * find all files or directories named "name" in the current directory or any
+     * child
+     * directory and print the full directory path of all such files or directories
+     * large subtrees are searched in parallel, the output order stays the same
+     * the name can be a glob ('log*'), and with --index the names are looked up instead of walked
+     */
+    private void find(String targetName) {
+        // printing the full path of every file or directory with the target name,
+        // the path is carried down the walk instead of being rebuilt for each match
+        fileSystem.find(currentDirectory, targetName, out::println);
+    }
+
+    /*
+     * if command is grep,
+     * printing "path:line" for every line of a file below the current directory, or below
+     * path, that contains the pattern. -l only prints the paths of the files, -n adds the line
+     * numbers, -m stops after that many lines of a file and -F takes the pattern literally.
+     * a pattern with spaces can be quoted
+     */
+    private void grep(String rest) {
+        boolean namesOnly = false;
+        boolean lineNumbers = false;
+        boolean fixed = false;
+        int maxPerFile = Integer.MAX_VALUE;
+        rest = rest.trim();
+        while (rest.startsWith("-")) {
+            int space = rest.indexOf(' ');
+            String option = space < 0 ? rest : rest.substring(0, space);
+            rest = space < 0 ? "" : rest.substring(space + 1).trim();
+            if (option.equals("-l")) {
+                namesOnly = true;
+            } else if (option.equals("-n")) {
+                lineNumbers = true;
+            } else if (option.equals("-F")) {
+                fixed = true;
+            } else if (option.equals("-m")) {
+                space = rest.indexOf(' ');
+                String count = space < 0 ? rest : rest.substring(0, space);
+                rest = space < 0 ? "" : rest.substring(space + 1).trim();
+                try {
+                    maxPerFile = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    error("Invalid count for -m: " + count);
+                    return;
+                }
+            } else {
+                error("Unknown option " + option + ", usage: grep [-l] [-n] [-F] [-m <count>] <pattern> [path]");
+                return;
+            }
+        }
+        if (rest.isEmpty()) {
+            error("Usage: grep [-l] [-n] [-F] [-m <count>] <pattern> [path]");
+            return;
+        }
+        // the pattern runs to the closing quote, or to the next space
+        int end = rest.charAt(0) == '\'' || rest.charAt(0) == '"' ? rest.indexOf(rest.charAt(0), 1) + 1 : rest.indexOf(' ');
+        if (end <= 0) {
+            end = rest.length();
+        }
+        String pattern = unquote(rest.substring(0, end));
+        String path = rest.substring(end).trim();
+        User directory = path.isEmpty() ? currentDirectory : resolve(path);
+        if (directory == null) {
+            error("File or directory not found: " + path);
+            return;
+        }
+        ContentSearch search;
+        try {
+            search = ContentSearch.of(pattern, fixed);
+        } catch (PatternSyntaxException e) {
+            error("Invalid pattern " + pattern + ": " + e.getDescription());
+            return;
+        }
+        if (maxPerFile <= 0) {
+            return;
+        }
+        for (String unreadable : fileSystem.grep(directory, search, maxPerFile, lineNumbers, namesOnly, out::println)) {
+            error("Cannot read file " + unreadable);
+        }
+    }
+
+    /*
+     * if command is cp,
+     * copying a file, or with -r a directory, to a new path or into an existing directory
+     */
+    private void copy(String[] arguments) {
+        boolean recursive = arguments.length > 0 && arguments[0].equals("-r");
+        int first = recursive ? 1 : 0;
+        if (arguments.length - first != 2) {
+            error("Usage: cp [-r] <source> <target>");
+            return;
+        }
+        try {
+            fileSystem.copy(currentDirectory, arguments[first], arguments[first + 1], recursive);
+            out.println("Copied: " + arguments[first] + " -> " + arguments[first + 1]);
+        } catch (IOException e) {
+            printError(e);
+        }
+    }
+
+    /*
+     * if command is mount,
+     * map a directory of the host into the tree, its listings and file contents are read
+     * from the host when first used
+     */
+    private void mount(String hostDirectory, String path) {
+        try {
+            fileSystem.mount(currentDirectory, hostDirectory, path);
+            out.println("Mounted: " + hostDirectory + " -> " + path);
+        } catch (IOException e) {
+            printError(e);
+        }
+    }
+
+    /*
+     * if command is snapshot,
+     * taking, dropping and listing snapshots of the tree, and reading the tree as it was in one.
+     * paths in a snapshot start at its root
+     */
+    private void snapshot(String[] arguments) {
+        if (arguments.length == 1 && arguments[0].equals("list")) {
+            for (FileSystem.TreeSnapshot snapshot : fileSystem.getSnapshots()) {
+                out.println(snapshot.name + " (epoch " + snapshot.epoch() + ", "
+                        + snapshot.root.getTotalCount(snapshot.epoch()) + " files and directories)");
+            }
+            return;
+        }
+        if (arguments.length < 2) {
+            error("Usage: snapshot create|delete|ls|cat|du|find <name> [path]");
+            return;
+        }
+        String name = arguments[1];
+        try {
+            switch (arguments[0]) {
+                case "create":
+                    fileSystem.snapshot(name);
+                    out.println("Snapshot created: " + name);
+                    return;
+                case "delete":
+                    fileSystem.deleteSnapshot(name);
+                    out.println("Snapshot deleted: " + name);
+                    return;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            printError(e);
+            return;
+        }
+
+        FileSystem.TreeSnapshot snapshot = fileSystem.getSnapshot(name);
+        if (snapshot == null) {
+            error("Snapshot '" + name + "' not found");
+            return;
+        }
+        long epoch = snapshot.epoch();
+        String path = arguments.length > 2 ? arguments[2] : "/";
+        if (arguments[0].equals("find")) {
+            if (arguments.length < 3) {
+                error("Please provide a target name for the find command.");
+                return;
+            }
+            Finder.forEachMatch(snapshot.root, arguments[2], epoch, match -> out.println(name + ":" + match));
+            return;
+        }
+        User user = snapshot.resolve(path);
+        if (user == null) {
+            error("File or directory not found in snapshot " + name + ": " + path);
+            return;
+        }
+        switch (arguments[0]) {
+            case "ls":
+                if (user.isFile()) {
+                    out.println(user.getName());
+                    break;
+                }
+                printListing(user.getSubDirectories(epoch));
+                break;
+            case "cat":
+                if (!user.isFile()) {
+                    error("Cannot read file " + path);
+                    break;
+                }
+                out.println("File content of " + name + ":" + path);
+                try {
+                    user.getContent(epoch).writeTo(out);
+                } catch (IOException e) {
+                    error("Cannot read file " + path);
+                    break;
+                }
+                out.println();
+                break;
+            case "du":
+                out.println(user.getTotalSize(epoch));
+                break;
+            default:
+                error("Usage: snapshot create|delete|ls|cat|du|find <name> [path]");
+        }
+    }
+
+    /*
+     * if command is view,
+     * opening a snapshot file, or the tree as it is now, as a read-only CompactTree that takes
+     * a fraction of the memory, and reading it like a snapshot. paths in a view start at its root
+     */
+    private void view(String[] arguments) {
+        if (arguments.length == 1 && arguments[0].equals("list")) {
+            for (Map.Entry<String, CompactTree> view : fileSystem.getViews().entrySet()) {
+                Path source = view.getValue().getSource();
+                out.println(view.getKey() + " (" + (source != null ? source : "copy of the tree") + ", "
+                        + view.getValue().size() + " files and directories)");
+            }
+            return;
+        }
+        if (arguments.length < 2) {
+            error("Usage: view open|close|ls|cat|du|find <name> [path]");
+            return;
+        }
+        String name = arguments[1];
+        try {
+            switch (arguments[0]) {
+                case "open":
+                    CompactTree opened = fileSystem.openView(name, arguments.length > 2 ? Paths.get(arguments[2]) : null);
+                    out.println("View opened: " + name + " (" + opened.size() + " files and directories)");
+                    return;
+                case "close":
+                    fileSystem.closeView(name);
+                    out.println("View closed: " + name);
+                    return;
+                default:
+                    break;
+            }
+        } catch (FileSystemException e) {
+            printError(e);
+            return;
+        } catch (IOException e) {
+            error("Cannot open view " + name + ": " + e.getMessage());
+            return;
+        }
+
+        CompactTree view = fileSystem.getView(name);
+        if (view == null) {
+            error("View '" + name + "' not found");
+            return;
+        }
+        if (arguments[0].equals("find")) {
+            if (arguments.length < 3) {
+                error("Please provide a target name for the find command.");
+                return;
+            }
+            view.find(view.getRoot(), NamePattern.of(unquote(arguments[2])), match -> out.println(name + ":" + match));
+            return;
+        }
+        String path = arguments.length > 2 ? arguments[2] : "/";
+        TreeNode node = PathResolver.resolveNode(view.getRoot(), view.getRoot(), path);
+        if (node == null) {
+            error("File or directory not found in view " + name + ": " + path);
+            return;
+        }
+        switch (arguments[0]) {
+            case "ls":
+                if (node.isFile()) {
+                    out.println(node.getName());
+                    break;
+                }
+                printListing(node.getSubDirectories());
+                break;
+            case "cat":
+                if (!node.isFile()) {
+                    error("Cannot read file " + path);
+                    break;
+                }
+                out.println("File content of " + name + ":" + path);
+                try {
+                    node.getContent().writeTo(out);
+                } catch (IOException | UncheckedIOException e) {
+                    error("Cannot read file " + path);
+                    break;
+                }
+                out.println();
+                break;
+            case "du":
+                if (arguments.length > 3 && arguments[3].equals("--recount")) {
+                    out.println(view.recount(node));
+                } else {
+                    out.println(node.getTotalSize());
+                }
+                break;
+            default:
+                error("Usage: view open|close|ls|cat|du|find <name> [path]");
+        }
+    }
+
+    /*
+     * if command is watch,
+     * printing every change in a directory, and with -r below it, while the session goes on.
+     * the changes are printed by another thread in batches, "watch: create /a/b"
+     */
+    private void watch(String[] arguments) {
+        if (arguments.length == 0) {
+            forgetFinishedWatches();
+            for (Watches.Watch watch : watching) {
+                out.println(PathResolver.pathOf(watch.directory) + (watch.recursive ? " (recursive)" : ""));
+            }
+            return;
+        }
+        boolean recursive = arguments[0].equals("-r");
+        String path = arguments.length > (recursive ? 1 : 0) ? arguments[recursive ? 1 : 0] : ".";
+        User directory = resolve(path);
+        if (directory == null || !directory.isDirectory()) {
+            error("Directory '" + path + "' not found or not a directory");
+            return;
+        }
+        watching.add(fileSystem.watch(directory, recursive, holdingEvents, Watches.DEFAULT_CAPACITY, this::printEvents));
+        out.println("Watching: " + PathResolver.pathOf(directory) + (recursive ? " (recursive)" : ""));
+    }
+
+    // called on a delivery thread, or by printHeldEvents, a whole batch is printed at once
+    private void printEvents(List<Watches.Event> events) {
+        synchronized (out) {
+            for (Watches.Event event : events) {
+                out.println("watch: " + event);
+            }
+            if (interactive) {
+                out.flush();
+            }
+        }
+    }
+
+    /*
+     * if command is unwatch,
+     * stopping the watches of this session on a directory
+     */
+    private void unwatch(String path) {
+        forgetFinishedWatches();
+        User directory = resolve(path);
+        boolean found = false;
+        for (Iterator<Watches.Watch> watches = watching.iterator(); watches.hasNext(); ) {
+            Watches.Watch watch = watches.next();
+            if (watch.directory == directory) {
+                fileSystem.unwatch(watch);
+                watches.remove();
+                found = true;
+            }
+        }
+        if (found) {
+            out.println("Stopped watching: " + PathResolver.pathOf(directory));
+        } else {
+            error("Not watching " + path);
+        }
+    }
+
+    /*
+     * if command is save,
+     * write the whole tree to a snapshot file on the real disk
+     */
+    private void save(String fileName) {
+        try {
+            long count = fileSystem.save(Paths.get(fileName));
+            out.println("Snapshot saved: " + fileName + " (" + count + " files and directories)");
+        } catch (IOException e) {
+            error("Cannot save snapshot " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * if command is load,
+     * replace the whole tree with the one in a snapshot file
+     * and go back to the root directory
+     */
+    private void load(String fileName) {
+        try {
+            User root = fileSystem.load(Paths.get(fileName));
+            checkGeneration();
+            out.println("Snapshot loaded: " + fileName + " (" + root.getTotalCount() + " files and directories)");
+        } catch (IOException e) {
+            error("Cannot load snapshot " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    private void writePrometheus(String fileName) {
+        try {
+            fileSystem.getMetrics().writePrometheus(Paths.get(fileName), fileSystem.getRoot());
+            out.println("Metrics written: " + fileName);
+        } catch (IOException e) {
+            error("Cannot write metrics " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * if command is compact,
+     * fold the journal of the data directory into a new snapshot
+     */
+    private void compact() {
+        try {
+            fileSystem.compact();
+            out.println("Journal compacted");
+        } catch (FileSystemException e) {
+            error("" + e.getMessage());
+        } catch (IOException e) {
+            error("Cannot compact journal: " + e.getMessage());
+        }
+    }
+}
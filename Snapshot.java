@@ -0,0 +1,346 @@
+/*
+ * Snapshot.java saves the whole User tree to a binary file and loads it back.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * the snapshot format is a header followed by every User in depth first order:
+ *
+ *   header:    "FSYS" magic, int version, long number of Users
+ *   directory: byte 0, varint name length, name bytes (UTF-8), varint number of children
+ *   file:      byte 1, varint name length, name bytes (UTF-8), varint content length, content bytes
+ *
+ * lengths are varints (7 bits per byte), so small names and counts take one byte.
+ * saving writes through one FileChannel with a large buffer into a temporary file,
+ * which then replaces the snapshot, so a crash never leaves a half written snapshot.
+ * loading memory-maps the snapshot and only reads the names and lengths. file contents
+ * stay in the mapping as OffHeapContent and are paged in by the OS on the first cat.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x46535953; // "FSYS"
+    private static final int VERSION = 1;
+    private static final byte DIRECTORY = 0;
+    private static final byte FILE = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    // snapshots are mapped in windows of at most this many bytes
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private Snapshot() {
+    }
+
+    // writing the tree below root to file, returns the number of Users written
+    static long save(User root, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long count;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter writer = new ChannelWriter(channel, BUFFER_SIZE);
+            writer.writeInt(MAGIC);
+            writer.writeInt(VERSION);
+            writer.writeLong(0);
+            count = writeTree(root, writer);
+            writer.flush();
+            // the count is written last, mounted directories are listed while the tree is written
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, count), 8);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    // reading a tree written by save, returns its root
+    static User load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader reader = new MappedReader(channel);
+            if (reader.readInt() != MAGIC) {
+                throw new IOException("Not a FileSys snapshot: " + file);
+            }
+            int version = reader.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            long count = reader.readLong();
+            User root = readTree(reader);
+            if (root.getTotalCount() != count) {
+                throw new IOException("Snapshot is truncated: expected " + count + " Users but found "
+                        + root.getTotalCount());
+            }
+            return root;
+        }
+    }
+
+    /*
+     * reading a tree written by save into a CompactTree, without making a single User.
+     * file contents are not read, only where they start is kept, they are mapped from file
+     * when they are read
+     */
+    static CompactTree loadCompact(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader reader = new MappedReader(channel);
+            if (reader.readInt() != MAGIC) {
+                throw new IOException("Not a FileSys snapshot: " + file);
+            }
+            int version = reader.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            long count = reader.readLong();
+            if (count > Integer.MAX_VALUE - 8) {
+                throw new IOException("Snapshot is too large for a compact tree: " + count + " Users");
+            }
+            CompactTree.Builder builder = new CompactTree.Builder(file.toAbsolutePath());
+            // the same walk as readTree, with node numbers instead of Users
+            int[] parents = new int[16];
+            long[] remaining = new long[16];
+            int depth = 0;
+            int read = 0;
+            do {
+                int parent = depth == 0 ? -1 : parents[depth - 1];
+                if (depth > 0 && --remaining[depth - 1] == 0) {
+                    depth--;
+                }
+                byte kind = reader.readByte();
+                int length = reader.readName();
+                if (kind == DIRECTORY) {
+                    int node = builder.addDirectory(parent, reader.name, 0, length);
+                    long children = reader.readVarLong();
+                    if (children > 0) {
+                        if (depth == parents.length) {
+                            parents = Arrays.copyOf(parents, depth * 2);
+                            remaining = Arrays.copyOf(remaining, depth * 2);
+                        }
+                        parents[depth] = node;
+                        remaining[depth++] = children;
+                    }
+                } else if (kind == FILE) {
+                    long size = reader.readVarLong();
+                    builder.addFile(parent, reader.name, 0, length, size, reader.skip(size));
+                } else {
+                    throw new IOException("Corrupt snapshot: unknown entry type " + kind);
+                }
+                read++;
+            } while (depth > 0);
+            if (read != count) {
+                throw new IOException("Snapshot is truncated: expected " + count + " Users but found " + read);
+            }
+            return builder.build();
+        }
+    }
+
+    // returns the number of Users written
+    private static long writeTree(User root, ChannelWriter writer) throws IOException {
+        List<User> rootChildren = root.getSubDirectories();
+        writeNode(root, rootChildren, writer);
+        long count = 1;
+        // an explicit stack of child iterators, so deep trees do not overflow the Java stack
+        Deque<Iterator<User>> stack = new ArrayDeque<>();
+        stack.push(rootChildren.iterator());
+        while (!stack.isEmpty()) {
+            Iterator<User> children = stack.peek();
+            if (!children.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            User child = children.next();
+            List<User> grandChildren = child.getSubDirectories();
+            writeNode(child, grandChildren, writer);
+            count++;
+            if (child.isDirectory()) {
+                stack.push(grandChildren.iterator());
+            }
+        }
+        return count;
+    }
+
+    // children is the list that is walked next, so the count written always matches it
+    private static void writeNode(User user, List<User> children, ChannelWriter writer) throws IOException {
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        writer.writeByte(user.isDirectory() ? DIRECTORY : FILE);
+        writer.writeVarLong(name.length);
+        writer.write(name, 0, name.length);
+        if (user.isDirectory()) {
+            writer.writeVarLong(children.size());
+        } else {
+            FileContent content = user.getContent();
+            writer.writeVarLong(content.size());
+            content.writeTo(writer);
+        }
+    }
+
+    private static User readTree(MappedReader reader) throws IOException {
+        // directories whose children are still being read, with how many are left
+        Deque<User> parents = new ArrayDeque<>();
+        Deque<long[]> remaining = new ArrayDeque<>();
+        User root = readNode(reader, null, parents, remaining);
+        while (!parents.isEmpty()) {
+            User parent = parents.peek();
+            if (--remaining.peek()[0] == 0) {
+                // the last child of this directory is read next
+                parents.pop();
+                remaining.pop();
+            }
+            readNode(reader, parent, parents, remaining);
+        }
+        return root;
+    }
+
+    private static User readNode(MappedReader reader, User parent, Deque<User> parents, Deque<long[]> remaining)
+            throws IOException {
+        byte kind = reader.readByte();
+        String name = reader.readString();
+        if (kind == DIRECTORY) {
+            User directory = new User(parent, name, true);
+            long children = reader.readVarLong();
+            if (children > 0) {
+                parents.push(directory);
+                remaining.push(new long[] {children});
+            }
+            return directory;
+        }
+        if (kind == FILE) {
+            User file = new User(parent, name, false);
+            file.setContent(reader.readContent(reader.readVarLong()));
+            return file;
+        }
+        throw new IOException("Corrupt snapshot: unknown entry type " + kind);
+    }
+
+    // reads through a moving window of the mapped snapshot
+    private static final class MappedReader {
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        byte[] name = new byte[256]; // the last name read by readName
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            map(0);
+        }
+
+        byte readByte() throws IOException {
+            ensure(1);
+            return window.get();
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte next = readByte();
+                value |= (long) (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt snapshot: length too long");
+        }
+
+        String readString() throws IOException {
+            int length = (int) readVarLong();
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // reading the next name into name without decoding it, returns its length
+        int readName() throws IOException {
+            int length = (int) readVarLong();
+            ensure(length);
+            if (length > name.length) {
+                name = new byte[Math.max(length, name.length * 2)];
+            }
+            window.get(name, 0, length);
+            return length;
+        }
+
+        // going past the next length bytes, returns where they start in the file
+        long skip(long length) throws IOException {
+            long start = position();
+            if (length <= window.remaining()) {
+                window.position(window.position() + (int) length);
+            } else if (start + length > fileSize) {
+                throw new IOException("Corrupt snapshot: unexpected end of file");
+            } else {
+                map(start + length);
+            }
+            return start;
+        }
+
+        // the next length bytes as content that stays in the mapping
+        FileContent readContent(long length) throws IOException {
+            if (length == 0) {
+                return FileContent.EMPTY;
+            }
+            ByteBuffer[] parts;
+            if (length <= WINDOW_SIZE) {
+                ensure(length);
+                parts = new ByteBuffer[] {slice(window, (int) length)};
+            } else {
+                // a file larger than a window gets mappings of its own
+                long start = position();
+                parts = new ByteBuffer[(int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+                for (int i = 0; i < parts.length; i++) {
+                    long offset = start + i * WINDOW_SIZE;
+                    parts[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                            Math.min(WINDOW_SIZE, start + length - offset));
+                }
+                map(start + length);
+            }
+            return new OffHeapContent(parts, WINDOW_SIZE, length);
+        }
+
+        private long position() {
+            return windowStart + window.position();
+        }
+
+        // making sure the next bytes are inside the window, mapping a new window if not
+        private void ensure(long bytes) throws IOException {
+            if (window.remaining() >= bytes) {
+                return;
+            }
+            long position = position();
+            if (position + bytes > fileSize) {
+                throw new IOException("Corrupt snapshot: unexpected end of file");
+            }
+            map(position);
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, fileSize - position));
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int length) {
+            ByteBuffer slice = buffer.slice();
+            slice.limit(length);
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Store.java keeps the tree in a directory on the real disk, as a snapshot plus a journal.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/*
+ * the directory holds snapshot.<n>.fsys, the tree at generation n, and journal.<n>.log,
+ * every change made since that snapshot. opening the store loads the newest snapshot and
+ * replays its journal on top. compacting writes the current tree as the snapshot of the
+ * next generation with a new empty journal, and only then deletes the older files, so a
+ * crash at any point leaves one complete generation to start from.
+ */
+final class Store implements Closeable {
+    private final Path directory;
+    private final Journal.FsyncPolicy policy;
+    private final long syncMillis;
+    private final User root;
+    private final Set<User> mounts; // the mounts made by the replayed journal
+    private long generation;
+    private Journal journal;
+
+    private Store(Path directory, Journal.FsyncPolicy policy, long syncMillis, User root, Set<User> mounts,
+            long generation) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.syncMillis = syncMillis;
+        this.root = root;
+        this.mounts = mounts;
+        this.generation = generation;
+        this.journal = Journal.open(journalFile(generation), policy, syncMillis);
+    }
+
+    // opening the store in directory and rebuilding the tree it holds
+    static Store open(Path directory, Journal.FsyncPolicy policy, long syncMillis) throws IOException {
+        Files.createDirectories(directory);
+        long generation = latestGeneration(directory);
+        Path snapshot = directory.resolve(snapshotName(generation));
+        User root = Files.exists(snapshot) ? Snapshot.load(snapshot) : new User(null, "root", true);
+        Path journal = directory.resolve(journalName(generation));
+        Set<User> mounts = new HashSet<>();
+        if (Files.exists(journal)) {
+            Journal.replay(journal, (operation, path, content) -> apply(root, mounts, operation, path, content));
+        }
+        Store store = new Store(directory, policy, syncMillis, root, mounts, generation);
+        store.deleteOlderGenerations();
+        return store;
+    }
+
+    // the tree as it was when the store was opened, changed since by the logged commands
+    User getRoot() {
+        return root;
+    }
+
+    /*
+     * the mounts the journal made when the store was opened. they are listed from the host
+     * lazily like any other, a snapshot only holds mounts that were listed completely
+     */
+    Set<User> getMounts() {
+        return mounts;
+    }
+
+    // writing a change to the journal, returns once it is as safe as the fsync policy promises
+    void log(byte operation, String path, FileContent content) throws IOException {
+        commit(append(operation, path, content));
+    }
+
+    /*
+     * writing a change to the journal without waiting for it to be safe, returns the sequence
+     * number to commit. the caller keeps compact from running until it committed
+     */
+    long append(byte operation, String path, FileContent content) throws IOException {
+        return journal.append(operation, path, content);
+    }
+
+    // returning once every change appended up to sequence is as safe as the fsync policy promises
+    void commit(long sequence) throws IOException {
+        journal.commit(sequence);
+    }
+
+    /*
+     * folding the journal into a new snapshot of tree, which becomes the tree of the store
+     * from then on. the caller makes sure nothing changes the tree while this runs
+     */
+    void compact(User tree) throws IOException {
+        journal.sync();
+        long next = generation + 1;
+        Snapshot.save(tree, snapshotFile(next));
+        Journal nextJournal = Journal.open(journalFile(next), policy, syncMillis);
+        Journal previous = journal;
+        journal = nextJournal;
+        generation = next;
+        previous.close();
+        deleteOlderGenerations();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /*
+     * making one journal record happen on the tree. records are replayed as they were
+     * written, and a change that cannot be made is skipped like the command was
+     */
+    private static void apply(User root, Set<User> mounts, byte operation, String path, FileContent content) {
+        User parent = PathResolver.resolveParent(root, root, path);
+        String name = PathResolver.fileName(path);
+        if (parent == null || name == null) {
+            return;
+        }
+        User existing = parent.getChild(name);
+        switch (operation) {
+            case Journal.CREATE:
+                if (existing == null) {
+                    new User(parent, name, false).setContent(content);
+                }
+                break;
+            case Journal.MOUNT:
+                if (existing == null) {
+                    mounts.add(User.mount(parent, name, Paths.get(content.asString())));
+                }
+                break;
+            case Journal.APPEND:
+                if (existing != null && existing.isFile()) {
+                    try {
+                        existing.setContent(AppendableContent.append(existing.getContent(), content));
+                    } catch (IOException e) {
+                        // a mounted file that changed on the host since, the append is left out like other stale entries
+                    }
+                }
+                break;
+            case Journal.REMOVE_FILE:
+                if (existing != null && existing.isFile()) {
+                    existing.detach();
+                }
+                break;
+            case Journal.MKDIR:
+                if (existing == null) {
+                    new User(parent, name, true);
+                }
+                break;
+            case Journal.RMDIR:
+                if (existing != null && existing.isDirectory()) {
+                    existing.detach();
+                    FileSystem.reclaim(existing, null, null); // nothing is shared yet while replaying
+                }
+                break;
+            case Journal.COPY:
+                User source = PathResolver.resolve(root, root, content.asString());
+                if (existing == null && source != null) {
+                    // like cp -r, the mounts below the source are listed before it is pinned
+                    FileSystem.listMounts(mounts, source);
+                    Versions.Pin pin = root.getVersions().pin();
+                    User.copy(parent, name, source, pin, UnaryOperator.identity());
+                    pin.release();
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal operation " + operation);
+        }
+    }
+
+    // the newest generation with a snapshot, or 0 when there is none yet
+    private static long latestGeneration(Path directory) throws IOException {
+        long latest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot.*.fsys")) {
+            for (Path file : files) {
+                long generation = generationOf(file.getFileName().toString());
+                latest = Math.max(latest, generation);
+            }
+        }
+        return latest;
+    }
+
+    private void deleteOlderGenerations() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{snapshot.*.fsys,journal.*.log}")) {
+            for (Path file : files) {
+                if (generationOf(file.getFileName().toString()) < generation) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // the n in snapshot.<n>.fsys or journal.<n>.log, -1 for other names
+    private static long generationOf(String fileName) {
+        int start = fileName.indexOf('.') + 1;
+        int end = fileName.lastIndexOf('.');
+        try {
+            return Long.parseLong(fileName.substring(start, end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private Path snapshotFile(long generation) {
+        return directory.resolve(snapshotName(generation));
+    }
+
+    private Path journalFile(long generation) {
+        return directory.resolve(journalName(generation));
+    }
+
+    private static String snapshotName(long generation) {
+        return "snapshot." + generation + ".fsys";
+    }
+
+    private static String journalName(long generation) {
+        return "journal." + generation + ".log";
+    }
+}
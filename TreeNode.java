@@ -0,0 +1,42 @@
+/*
+ * TreeNode.java is what the reading commands need from a file or directory.
+ */
+
+import java.util.List;
+
+/*
+ * TreeNode is implemented by User, the live tree every command changes, and by the nodes
+ * of a CompactTree, a read-only tree kept in primitive arrays. resolving paths, ls, du,
+ * cat and pwd only go through TreeNode, so they work the same on both
+ */
+interface TreeNode {
+
+    String getName();
+
+    boolean isDirectory();
+
+    default boolean isFile() {
+        return !isDirectory();
+    }
+
+    // null for the root
+    TreeNode getParent();
+
+    default boolean isRoot() {
+        return getParent() == null;
+    }
+
+    // the direct child called name, or null
+    TreeNode getChild(String name);
+
+    // the children in alphabetical order of their names
+    List<? extends TreeNode> getSubDirectories();
+
+    // the bytes of all files in the subtree
+    long getTotalSize();
+
+    // the number of files and directories in the subtree, this one included
+    long getTotalCount();
+
+    FileContent getContent();
+}
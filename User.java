@@ -0,0 +1,728 @@
+/*
+ * User.java is a node of the file system tree, either a directory or a file.
+ */
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/*
+ * User class has attributes such as name, type: directory or file, parent directory reference,
+ * subdirectories, and file content .
+ * subdirectories are kept in a TreeMap keyed by name, so looking up, adding and
+ * removing a child is O(log n) and the children are always in alphabetical order
+ * every User also remembers its own byte size, the total size and the number of Users in its subtree,
+ * which are updated along the parent chain whenever the tree changes
+ * file content is held as a FileContent, either heap chunks or off-heap buffers for large files
+ *
+ * Users can be shared by many threads:
+ * - every directory has a read/write lock guarding its subdirectories, readers share it
+ *   and adding or removing a child takes it for writing
+ * - file content is immutable and swapped in a volatile field, so cat never locks
+ * - the subtree totals are atomic counters. a change is passed up the parent chain while
+ *   holding the lock of the User it comes from and the read lock of the parent it goes to,
+ *   and removing a User takes its own lock before its parent's write lock. so a change
+ *   either reaches the parent before the User is removed, and is taken off with it,
+ *   or stops at the removed User. locks are always taken from a User towards the root
+ *   when more than one is held, which rules out deadlocks
+ *
+ * older states can be read too (see Versions). while an epoch is pinned, a User remembers
+ * its totals and content before the first change of every later epoch, and a directory
+ * every change of its children with the child that was there before. reading at an epoch
+ * takes the live state and puts back what changed after it. only the first change of a
+ * child in an epoch is kept, it has the child from before the epoch, and the changes are
+ * kept by name, so looking up one child at an epoch never goes through the others. what no
+ * pin needs anymore is dropped at the first change after the oldest pin moved on.
+ * a copy (cp -r) is made in O(1): the new directory takes the totals of its source and
+ * only remembers the source and a pinned epoch. its children are copied from the source
+ * as it was at that epoch when they are first needed, one directory at a time, and the
+ * copied files share the content of their source. FileSystem fills a copy in the background
+ * as well, so it does not keep its pin, and every change remembering history, for long.
+ * a mounted directory (mount) shows a directory of the host. its children are listed from
+ * the host the first time they are needed, one directory at a time like a copy
+ */
+class User implements TreeNode {
+    static final long LIVE = Long.MAX_VALUE; // reading at LIVE is reading the current state
+
+    private static final AtomicLongFieldUpdater<User> TOTAL_SIZE =
+            AtomicLongFieldUpdater.newUpdater(User.class, "totalSize");
+    private static final AtomicLongFieldUpdater<User> TOTAL_COUNT =
+            AtomicLongFieldUpdater.newUpdater(User.class, "totalCount");
+
+    private final String name;
+    private final boolean isDirectory;
+    private final User parent;
+    private final TreeMap<String, User> subDirectories;
+    private final ReentrantReadWriteLock lock; // directories only, files use their monitor
+    private final Versions versions; // shared by the whole tree
+    private volatile FileContent content;
+    private volatile long size; // bytes of this file's content, 0 for directories
+    private volatile long totalSize; // bytes of all files in this subtree
+    private volatile long totalCount = 1; // Users in this subtree, counting this one
+    private volatile boolean detached; // removed from its parent, or inside a removed directory once reclaimed
+    private volatile boolean reclaimed; // walked by the reclaimer after a directory above it was removed
+    private volatile History history; // null while no older state is remembered, guarded by this
+    private volatile PendingCopy pendingCopy; // set on a copied directory until its children are made
+    private volatile Path mountPath; // set on a mounted host directory until its children are listed
+
+    // what this User looked like before the changes of later epochs
+    private static final class History {
+        final List<State> states = new ArrayList<>();
+        final Map<String, List<ChildChange>> childChanges = new HashMap<>(); // name -> changes, oldest first
+        volatile long lastStateEpoch = -1;
+        private long prunedAt; // the oldest pin at the last prune, nothing older is left
+
+        History(long oldestPin) {
+            this.prunedAt = oldestPin;
+        }
+
+        // going through everything only when a pin went since the last time, not on every change
+        void prune(long oldestPin) {
+            if (oldestPin == prunedAt) {
+                return;
+            }
+            prunedAt = oldestPin;
+            states.removeIf(state -> state.epoch <= oldestPin);
+            childChanges.values().removeIf(changes -> {
+                changes.removeIf(change -> change.epoch <= oldestPin);
+                return changes.isEmpty();
+            });
+        }
+
+        // the child name pointed to at epoch, when it changed after epoch
+        ChildChange childAfter(String name, long epoch) {
+            List<ChildChange> changes = childChanges.get(name);
+            if (changes != null) {
+                for (ChildChange change : changes) {
+                    if (change.epoch > epoch) {
+                        return change;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    // the totals and content before the first change of an epoch
+    private static final class State {
+        final long epoch;
+        final long totalSize;
+        final long totalCount;
+        final FileContent content;
+
+        State(long epoch, long totalSize, long totalCount, FileContent content) {
+            this.epoch = epoch;
+            this.totalSize = totalSize;
+            this.totalCount = totalCount;
+            this.content = content;
+        }
+    }
+
+    // the child a name pointed to before its first change in an epoch, null if there was none
+    private static final class ChildChange {
+        final long epoch;
+        final User previous;
+
+        ChildChange(long epoch, User previous) {
+            this.epoch = epoch;
+            this.previous = previous;
+        }
+    }
+
+    // where the children of a copied directory come from
+    private static final class PendingCopy {
+        final User source;
+        final Versions.Pin pin;
+        final UnaryOperator<FileContent> share;
+        final long createdEpoch; // the epoch the copy was made in
+
+        PendingCopy(User source, Versions.Pin pin, UnaryOperator<FileContent> share, long createdEpoch) {
+            this.source = source;
+            this.pin = pin;
+            this.share = share;
+            this.createdEpoch = createdEpoch;
+        }
+    }
+
+    // creating a directory
+    User(User parent, String name, boolean isDirectory) {
+        this.name = PathResolver.intern(name);
+        this.parent = parent;
+        this.isDirectory = isDirectory;
+        this.subDirectories = isDirectory ? new TreeMap<>() : null; // files have no children
+        this.lock = isDirectory ? new ReentrantReadWriteLock() : null;
+        this.versions = parent != null ? parent.versions : new Versions();
+        this.content = FileContent.EMPTY; // initialize content for directories
+        if (parent != null) {
+            parent.addSubDirectory(this);
+        }
+    }
+
+    /*
+     * a copy of source as it was at the pinned epoch, made as a child of parent.
+     * share turns a content of the source into the content of the copy
+     */
+    private User(User parent, String name, User source, Versions.Pin pin, UnaryOperator<FileContent> share,
+            long createdEpoch) {
+        this.name = PathResolver.intern(name);
+        this.parent = parent;
+        this.isDirectory = source.isDirectory;
+        this.subDirectories = isDirectory ? new TreeMap<>() : null;
+        this.lock = isDirectory ? new ReentrantReadWriteLock() : null;
+        this.versions = parent.versions;
+        if (isDirectory) {
+            this.content = FileContent.EMPTY;
+            this.totalSize = source.getTotalSize(pin.epoch);
+            this.totalCount = source.getTotalCount(pin.epoch);
+            if (totalCount > 1) {
+                this.pendingCopy = new PendingCopy(source, pin.retain(), share, createdEpoch);
+            }
+        } else {
+            this.content = share.apply(source.getContent(pin.epoch));
+            this.size = content.size();
+            this.totalSize = size;
+        }
+    }
+
+    /*
+     * copying source as it was at the pinned epoch into parent under name, in O(1).
+     * the caller makes sure parent has no child of that name
+     */
+    static User copy(User parent, String name, User source, Versions.Pin pin, UnaryOperator<FileContent> share) {
+        User copy = new User(parent, name, source, pin, share, parent.versions.current());
+        parent.addSubDirectory(copy);
+        return copy;
+    }
+
+    // creating a file with content
+    User(User parent, String name, boolean isDirectory, String content) {
+        this(parent, name, isDirectory);
+        if (!isDirectory) {
+            setContent(FileContent.of(content));
+        }
+    }
+
+    // getters and setters
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return isDirectory;
+    }
+
+    @Override
+    public User getParent() {
+        return parent;
+    }
+
+    Versions getVersions() {
+        return versions;
+    }
+
+    // a copy of the children in alphabetical order of their names
+    @Override
+    public List<User> getSubDirectories() {
+        if (subDirectories == null) {
+            return Collections.emptyList();
+        }
+        fill();
+        User[] children;
+        lock.readLock().lock();
+        try {
+            children = subDirectories.values().toArray(new User[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Arrays.asList(children);
+    }
+
+    boolean hasSubDirectories() {
+        if (subDirectories == null) {
+            return false;
+        }
+        if (pendingCopy != null) {
+            return totalCount > 1;
+        }
+        fillMount();
+        lock.readLock().lock();
+        try {
+            return !subDirectories.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // finding a direct child by its name, null if there is none
+    @Override
+    public User getChild(String name) {
+        if (subDirectories == null) {
+            return null;
+        }
+        fill();
+        lock.readLock().lock();
+        try {
+            return subDirectories.get(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the lock of a directory, held for writing while a command checks and changes its children
+    Lock writeLock() {
+        return lock.writeLock();
+    }
+
+    @Override
+    public FileContent getContent() {
+        return content;
+    }
+
+    void setContent(FileContent content) {
+        synchronized (this) {
+            rememberState();
+            this.content = content;
+            // the content knows its byte size, so du never has to look at the bytes
+            long newSize = content.size();
+            long delta = newSize - size;
+            size = newSize;
+            addToTotals(delta, 0);
+        }
+    }
+
+    @Override
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // true once this User has been removed from its directory
+    boolean isDetached() {
+        return detached;
+    }
+
+    /*
+     * adding a size and count change to this User and every directory above it.
+     * the caller holds the lock (or for a file the monitor) of this User
+     */
+    private void addToTotals(long sizeDelta, long countDelta) {
+        if (sizeDelta == 0 && countDelta == 0) {
+            return;
+        }
+        rememberState();
+        TOTAL_SIZE.addAndGet(this, sizeDelta);
+        TOTAL_COUNT.addAndGet(this, countDelta);
+        User child = this;
+        Lock held = null;
+        for (User directory = parent; directory != null; directory = directory.parent) {
+            Lock next = directory.lock.readLock();
+            next.lock();
+            if (held != null) {
+                held.unlock();
+            }
+            held = next;
+            if (child.detached) {
+                // the change stays inside the removed subtree
+                break;
+            }
+            directory.rememberState();
+            TOTAL_SIZE.addAndGet(directory, sizeDelta);
+            TOTAL_COUNT.addAndGet(directory, countDelta);
+            child = directory;
+        }
+        if (held != null) {
+            held.unlock();
+        }
+    }
+
+    // adding a subdirectory to the current directory
+    void addSubDirectory(User directory) {
+        fill();
+        lock.writeLock().lock();
+        try {
+            User replaced = subDirectories.put(directory.getName(), directory);
+            rememberChild(directory.getName(), replaced);
+            long sizeDelta = directory.totalSize;
+            long countDelta = directory.totalCount;
+            if (replaced != null) {
+                replaced.detached = true;
+                sizeDelta -= replaced.totalSize;
+                countDelta -= replaced.totalCount;
+            }
+            addToTotals(sizeDelta, countDelta);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // removing a direct child by its name, returns the removed child or null
+    User removeChild(String name) {
+        User child = getChild(name);
+        return child != null && child.detach() ? child : null;
+    }
+
+    /*
+     * removing this User from its directory, false if it was removed already.
+     * its own lock is taken first, so no change inside it is on its way up meanwhile
+     */
+    boolean detach() {
+        if (parent == null) {
+            return false;
+        }
+        if (isDirectory) {
+            lock.writeLock().lock();
+            try {
+                return detachFromParent();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        synchronized (this) {
+            return detachFromParent();
+        }
+    }
+
+    private boolean detachFromParent() {
+        parent.lock.writeLock().lock();
+        try {
+            if (detached) {
+                return false;
+            }
+            parent.subDirectories.remove(name, this);
+            parent.rememberChild(name, this);
+            detached = true;
+            parent.addToTotals(-totalSize, -totalCount);
+            return true;
+        } finally {
+            parent.lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * marking a file inside a removed subtree as removed as well, so it cannot be appended to
+     * any more, and handing out the content it ended with
+     */
+    FileContent closeRemovedFile() {
+        synchronized (this) {
+            detached = true;
+            return content;
+        }
+    }
+
+    /*
+     * marking a directory inside a removed subtree as removed as well and handing out its children,
+     * nothing can be added to it afterwards. the children of a copy that were never made are not made now
+     */
+    List<User> closeRemoved() {
+        lock.writeLock().lock();
+        try {
+            detached = true;
+            reclaimed = true;
+            mountPath = null; // the host directory is never listed for a removed mount
+            if (pendingCopy != null) {
+                retirePendingCopy();
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(subDirectories.values());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // true while this is a copied directory whose children are not made yet
+    boolean isPendingCopy() {
+        return pendingCopy != null;
+    }
+
+    // the epoch a copied directory whose children are not made yet was created in, -1 otherwise
+    long getPendingCopyEpoch() {
+        PendingCopy pending = pendingCopy;
+        return pending != null ? pending.createdEpoch : -1;
+    }
+
+    // handing a removed copied directory to Versions, which lets go of its source when nothing can read it
+    void retirePendingCopy() {
+        PendingCopy pending = pendingCopy;
+        if (pending != null) {
+            versions.retire(this, pending.createdEpoch);
+        }
+    }
+
+    /*
+     * giving up the children a copied directory has not made yet, used when it was removed
+     * before they were needed. the directory looks empty afterwards
+     */
+    void discardPendingCopy() {
+        if (lock == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            PendingCopy pending = pendingCopy;
+            if (pending != null) {
+                pendingCopy = null;
+                pending.pin.release();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void fill() {
+        fillMount();
+        fillCopy();
+    }
+
+    /*
+     * a directory showing the host directory hostDirectory. its children are listed from
+     * the host when they are first needed. the caller holds the lock of parent
+     */
+    static User mount(User parent, String name, Path hostDirectory) {
+        User directory = new User(parent, name, true);
+        directory.mountPath = hostDirectory;
+        return directory;
+    }
+
+    // true while this is a mounted directory whose children are not listed yet
+    boolean isMountPending() {
+        return mountPath != null;
+    }
+
+    /*
+     * listing the children of a mounted directory from the host, once. only their attributes
+     * are read: subdirectories are mounted in turn and files get a MappedContent of the size
+     * the host reports. links and special files are left out, a link could lead back up the tree
+     */
+    private void fillMount() {
+        if (mountPath == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Path hostDirectory = mountPath;
+            if (hostDirectory == null) {
+                return;
+            }
+            mountPath = null;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(hostDirectory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes =
+                            Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    String childName = entry.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        mount(this, childName, entry);
+                    } else if (attributes.isRegularFile()) {
+                        new User(this, childName, false).setContent(new MappedContent(entry, attributes.size()));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // a host directory that cannot be read shows what was listed until then
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // making the children of a copied directory from its source, once
+    private void fillCopy() {
+        if (pendingCopy == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            PendingCopy pending = pendingCopy;
+            if (pending == null) {
+                return;
+            }
+            // the children are part of the copy from the start, so they change no totals and no history.
+            // once the reclaimer has passed a removed copy it will not come back for its children, so they
+            // take nothing from the BlobStore and go when the snapshots reading them do
+            UnaryOperator<FileContent> share = reclaimed ? UnaryOperator.identity() : pending.share;
+            for (User child : pending.source.getSubDirectories(pending.pin.epoch)) {
+                User copy = new User(this, child.name, child, pending.pin, share, pending.createdEpoch);
+                subDirectories.put(copy.name, copy);
+                if (reclaimed) {
+                    copy.retirePendingCopy();
+                }
+            }
+            pendingCopy = null;
+            pending.pin.release();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the children as they were at epoch, in alphabetical order of their names
+    List<User> getSubDirectories(long epoch) {
+        if (epoch == LIVE || subDirectories == null) {
+            return getSubDirectories();
+        }
+        fill();
+        TreeMap<String, User> children;
+        lock.readLock().lock();
+        try {
+            children = new TreeMap<>(subDirectories);
+            synchronized (this) {
+                if (history != null) {
+                    for (String changed : history.childChanges.keySet()) {
+                        ChildChange change = history.childAfter(changed, epoch);
+                        if (change == null) {
+                            continue;
+                        }
+                        if (change.previous == null) {
+                            children.remove(changed);
+                        } else {
+                            children.put(changed, change.previous);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(children.values());
+    }
+
+    // the child called name as it was at epoch, null if there was none
+    User getChild(String name, long epoch) {
+        if (epoch == LIVE || subDirectories == null) {
+            return getChild(name);
+        }
+        fill();
+        lock.readLock().lock();
+        try {
+            synchronized (this) {
+                if (history != null) {
+                    ChildChange change = history.childAfter(name, epoch);
+                    if (change != null) {
+                        return change.previous;
+                    }
+                }
+            }
+            return subDirectories.get(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getTotalSize(long epoch) {
+        State state = stateAfter(epoch);
+        return state != null ? state.totalSize : totalSize;
+    }
+
+    long getTotalCount(long epoch) {
+        State state = stateAfter(epoch);
+        return state != null ? state.totalCount : totalCount;
+    }
+
+    FileContent getContent(long epoch) {
+        State state = stateAfter(epoch);
+        return state != null ? state.content : content;
+    }
+
+    // the state before the first change after epoch, null if nothing changed since
+    private State stateAfter(long epoch) {
+        if (epoch == LIVE || history == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (history != null) {
+                for (State state : history.states) {
+                    if (state.epoch > epoch) {
+                        return state;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    // the history to add to, or null when no pin needs it
+    private History historyToRecord() {
+        if (!versions.keeping()) {
+            history = null;
+            return null;
+        }
+        History current = history;
+        if (current == null) {
+            current = new History(versions.oldestPin());
+            history = current;
+        } else {
+            current.prune(versions.oldestPin());
+        }
+        return current;
+    }
+
+    // remembering the totals and content before their first change in the current epoch
+    private void rememberState() {
+        if (!versions.keeping() && history == null) {
+            return;
+        }
+        long epoch = versions.current();
+        History current = history;
+        if (current != null && current.lastStateEpoch == epoch) {
+            return;
+        }
+        synchronized (this) {
+            current = historyToRecord();
+            if (current != null && current.lastStateEpoch != epoch) {
+                current.states.add(new State(epoch, totalSize, totalCount, content));
+                current.lastStateEpoch = epoch;
+            }
+        }
+    }
+
+    // remembering which child name pointed to before its first change in this epoch, the caller holds the write lock
+    private void rememberChild(String name, User previous) {
+        if (!versions.keeping() && history == null) {
+            return;
+        }
+        synchronized (this) {
+            History current = historyToRecord();
+            if (current != null) {
+                long epoch = versions.current();
+                List<ChildChange> changes = current.childChanges.computeIfAbsent(name, key -> new ArrayList<>(1));
+                if (changes.isEmpty() || changes.get(changes.size() - 1).epoch != epoch) {
+                    changes.add(new ChildChange(epoch, previous));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    long getSize() {
+        // byte size calculated when the content was set
+        return size;
+    }
+
+    @Override
+    public boolean isFile() {
+        // if a User is a file
+        return !isDirectory;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Versions.java numbers the changes of one tree, so older states of it can still be read.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * every change of the tree is tagged with the current epoch. pinning takes the current
+ * epoch and starts a new one, so the pinned epoch covers exactly the changes made before
+ * the pin. as long as an epoch is pinned, every User remembers what it looked like before
+ * a later change (see User), and can be read as it was at that epoch.
+ * snapshots and copies that are not filled in yet hold pins. when none are left,
+ * nothing is remembered anymore.
+ * a pin has to be taken while no change is half done, FileSystem takes it under its tree lock.
+ * a copied directory that is removed before its children were made still holds a pin.
+ * it is retired here and lets go of the pin once no later pin can still see it
+ */
+final class Versions {
+    private final TreeMap<Long, Integer> pinned = new TreeMap<>(); // epoch -> number of pins
+    private final List<User> retired = new ArrayList<>(); // removed copies waiting for later pins to go
+    private volatile long epoch;
+    private volatile long oldestPin = Long.MAX_VALUE; // Long.MAX_VALUE when nothing is pinned
+
+    // a held epoch, released by every holder once it no longer reads at it
+    static final class Pin {
+        final long epoch;
+        private final Versions versions;
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        private Pin(Versions versions, long epoch) {
+            this.versions = versions;
+            this.epoch = epoch;
+        }
+
+        Pin retain() {
+            holders.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            if (holders.decrementAndGet() == 0) {
+                versions.unpin(epoch);
+            }
+        }
+    }
+
+    // the epoch changes made now are tagged with
+    long current() {
+        return epoch;
+    }
+
+    // true while some epoch is pinned, so changes have to be remembered
+    boolean keeping() {
+        return oldestPin != Long.MAX_VALUE;
+    }
+
+    // remembered states from this epoch or before are not needed by any pin
+    long oldestPin() {
+        return oldestPin;
+    }
+
+    synchronized Pin pin() {
+        long pinnedEpoch = epoch;
+        epoch = pinnedEpoch + 1;
+        pinned.merge(pinnedEpoch, 1, Integer::sum);
+        oldestPin = pinned.firstKey();
+        return new Pin(this, pinnedEpoch);
+    }
+
+    /*
+     * a removed copy created in createdEpoch gives up its pending children as soon as
+     * no pin from createdEpoch on exists, until then a snapshot may still read them
+     */
+    void retire(User copy, long createdEpoch) {
+        synchronized (this) {
+            if (pinned.ceilingKey(createdEpoch) != null) {
+                retired.add(copy);
+                return;
+            }
+        }
+        copy.discardPendingCopy();
+    }
+
+    private void unpin(long pinnedEpoch) {
+        List<User> free = new ArrayList<>();
+        synchronized (this) {
+            pinned.computeIfPresent(pinnedEpoch, (key, count) -> count > 1 ? count - 1 : null);
+            oldestPin = pinned.isEmpty() ? Long.MAX_VALUE : pinned.firstKey();
+            retired.removeIf(copy -> {
+                long createdEpoch = copy.getPendingCopyEpoch();
+                if (createdEpoch < 0) {
+                    return true; // a snapshot made its children meanwhile
+                }
+                if (pinned.ceilingKey(createdEpoch) == null) {
+                    free.add(copy);
+                    return true;
+                }
+                return false;
+            });
+        }
+        // outside the lock, discarding releases pins again
+        for (User copy : free) {
+            copy.discardPendingCopy();
+        }
+    }
+}
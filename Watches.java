@@ -0,0 +1,283 @@
+/*
+ * Watches.java tells listeners about the changes below the directories they watch.
+ */
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * a Watch is registered on a directory, for its children only or for everything below it.
+ * FileSystem reports every create, remove, append, copy and mount to changed, which looks
+ * up the watches on the parent and its ancestors. with no watches that is one volatile read.
+ *
+ * a change never waits for a listener. it goes into the queue of each Watch it concerns:
+ * a ConcurrentLinkedQueue of paths in the order they first changed, and a ConcurrentHashMap
+ * from path to the change waiting for it, where a new change to a path already waiting is
+ * folded into the old one (create and modify is a create, create and delete is nothing,
+ * delete and create is a modify). a queue holds at most capacity paths, after that changes
+ * are dropped and the next batch starts with an OVERFLOW event, which tells the listener to
+ * read the directory again.
+ * the first change in an empty queue hands the Watch to a delivery thread, which passes
+ * everything waiting as one batch to the listener, so a slow listener gets bigger batches
+ * instead of slowing the writers down. a polled Watch is never handed to a thread, its
+ * owner calls drain when it can take a batch, a server session between two answers.
+ * removing a directory is one DELETE for the directory, nothing is reported for what was below it.
+ * it ends the watches on and below the directory: they are dropped here, so the removed
+ * Users can go, and only deliver what they still hold. loading a tree ends every watch the same way
+ */
+final class Watches implements Closeable {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    enum Kind {
+        CREATE, DELETE, MODIFY, OVERFLOW
+    }
+
+    static final class Event {
+        final Kind kind;
+        final String path;
+        final boolean directory;
+
+        Event(Kind kind, String path, boolean directory) {
+            this.kind = kind;
+            this.path = path;
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().toLowerCase() + " " + path + (directory && kind != Kind.OVERFLOW ? " (*)" : "");
+        }
+    }
+
+    // one listener on one directory
+    final class Watch {
+        final User directory;
+        final boolean recursive;
+        private final boolean polled;
+        private final int capacity;
+        private final Consumer<List<Event>> listener;
+        private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+        private final ConcurrentHashMap<String, Event> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger queued = new AtomicInteger(); // the length of order
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean overflowed;
+        private volatile boolean cancelled;
+        private volatile boolean ended; // its directory went, nothing is added any more
+
+        private Watch(User directory, boolean recursive, boolean polled, int capacity, Consumer<List<Event>> listener) {
+            this.directory = directory;
+            this.recursive = recursive;
+            this.polled = polled;
+            this.capacity = capacity;
+            this.listener = listener;
+        }
+
+        private void offer(Event event) {
+            if (cancelled) {
+                return;
+            }
+            pending.compute(event.path, (path, waiting) -> {
+                if (waiting != null) {
+                    return fold(waiting, event);
+                }
+                if (queued.incrementAndGet() > capacity) {
+                    queued.decrementAndGet();
+                    overflowed = true;
+                    return null;
+                }
+                order.add(path);
+                return event;
+            });
+            schedule();
+        }
+
+        // handing the Watch to a delivery thread, unless it already is on one
+        private void schedule() {
+            if (polled || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                delivery.execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false); // closing, nothing is delivered any more
+            }
+        }
+
+        private void deliver() {
+            try {
+                drain();
+            } finally {
+                scheduled.set(false);
+            }
+            // a change that came in after the last drain but saw scheduled still set
+            if (!order.isEmpty() || overflowed) {
+                schedule();
+            }
+        }
+
+        // true once the directory went and everything the Watch held was delivered
+        boolean isFinished() {
+            return ended && order.isEmpty() && !overflowed;
+        }
+
+        /*
+         * passing everything waiting to the listener as one batch, on the calling thread.
+         * the lock keeps batches of one Watch in order, writers never take it
+         */
+        synchronized void drain() {
+            List<Event> batch = new ArrayList<>();
+            if (overflowed) {
+                overflowed = false;
+                batch.add(new Event(Kind.OVERFLOW, PathResolver.pathOf(directory), true));
+            }
+            String path;
+            while ((path = order.poll()) != null) {
+                queued.decrementAndGet();
+                Event event = pending.remove(path);
+                if (event != null) {
+                    batch.add(event);
+                }
+            }
+            if (!batch.isEmpty() && !cancelled) {
+                listener.accept(batch);
+            }
+        }
+    }
+
+    private final Map<User, List<Watch>> watches = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final ExecutorService delivery = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "filesystem-watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     * starting to tell listener about changes in directory, and with recursive below it.
+     * a polled watch only tells it when drain is called
+     */
+    Watch watch(User directory, boolean recursive, boolean polled, int capacity, Consumer<List<Event>> listener) {
+        Watch watch = new Watch(directory, recursive, polled, capacity, listener);
+        watches.computeIfAbsent(directory, key -> new CopyOnWriteArrayList<>()).add(watch);
+        count.incrementAndGet();
+        if (directory.isDetached()) {
+            end(directory, ended -> { }); // removed while it was being watched
+        }
+        return watch;
+    }
+
+    // nothing is delivered to the listener of watch afterwards
+    void cancel(Watch watch) {
+        watch.cancelled = true;
+        watches.computeIfPresent(watch.directory, (directory, list) -> {
+            if (list.remove(watch)) {
+                count.decrementAndGet();
+            }
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    // name in parent was created, removed or changed
+    void changed(User parent, String name, Kind kind, boolean directory) {
+        if (count.get() == 0) {
+            return;
+        }
+        Event event = null;
+        boolean direct = true;
+        for (User node = parent; node != null; node = node.getParent(), direct = false) {
+            List<Watch> list = watches.get(node);
+            if (list == null) {
+                continue;
+            }
+            for (Watch watch : list) {
+                if (direct || watch.recursive) {
+                    if (event == null) {
+                        event = new Event(kind, PathResolver.childPath(parent, name), directory);
+                    }
+                    watch.offer(event);
+                }
+            }
+        }
+    }
+
+    /*
+     * removed, a directory, was taken out of the tree. the watches on it and below it hear of
+     * it as well, it is the last they hear
+     */
+    void removed(User removed, String path) {
+        if (count.get() == 0) {
+            return;
+        }
+        Event event = new Event(Kind.DELETE, path, true);
+        for (User directory : watches.keySet()) {
+            if (isWithin(directory, removed)) {
+                end(directory, watch -> watch.offer(event));
+            }
+        }
+    }
+
+    // the whole tree was replaced, every watch has to read its directory again and ends
+    void replaced() {
+        for (User directory : watches.keySet()) {
+            end(directory, watch -> {
+                watch.overflowed = true;
+                watch.schedule();
+            });
+        }
+    }
+
+    // giving every watch on directory its last event and dropping them
+    private void end(User directory, Consumer<Watch> last) {
+        watches.computeIfPresent(directory, (key, list) -> {
+            for (Watch watch : list) {
+                last.accept(watch);
+                watch.ended = true;
+            }
+            count.addAndGet(-list.size());
+            return null;
+        });
+    }
+
+    int getWatchCount() {
+        return count.get();
+    }
+
+    @Override
+    public void close() {
+        delivery.shutdown();
+    }
+
+    private static boolean isWithin(User user, User directory) {
+        for (User node = user; node != null; node = node.getParent()) {
+            if (node == directory) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the change a path is left with after waiting followed by next
+    private static Event fold(Event waiting, Event next) {
+        if (waiting.kind == Kind.CREATE && next.kind == Kind.MODIFY) {
+            return waiting;
+        }
+        if (waiting.kind == Kind.CREATE && next.kind == Kind.DELETE) {
+            return null; // it never showed
+        }
+        if (waiting.kind == Kind.DELETE && next.kind == Kind.CREATE && waiting.directory == next.directory) {
+            return new Event(Kind.MODIFY, next.path, next.directory);
+        }
+        return next;
+    }
+}